@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import com.google.common.io.ByteStreams;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.etl.mock.common.MockEmitter;
+import io.cdap.cdap.etl.mock.transform.MockTransformContext;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AzureFaceExtractor#transform} against a {@link MockFaceApiServer} on the loopback interface, so
+ * the results reflect the cost of the plugin itself rather than the Azure services.
+ *
+ * Each invocation submits as many images as may be in flight at once and waits until all of their records are
+ * emitted, so the time of an invocation runs from the submission of an image to the emission of its faces. Throughput
+ * mode reports, through the {@link Counters}, the number of images and records emitted per second. Sample mode
+ * reports the latency percentiles of the images, such as p0.99. Run with {@code -prof gc} to add the allocation rate,
+ * see the benchmark profile in the pom.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AzureFaceExtractorBenchmark {
+  private static final Schema INPUT = Schema.recordOf("input",
+                                                      Schema.Field.of("body", Schema.of(Schema.Type.BYTES)));
+
+  /**
+   * The maximum number of images waiting on the services at the same time.
+   */
+  @Param({"1", "8"})
+  public int concurrency;
+
+  /**
+   * The number of faces the mock server reports per image: one, or the 64 the detect call returns at most.
+   */
+  @Param({"1", "64"})
+  public int facesPerImage;
+
+  /**
+   * The smallest and the largest of the bundled test images.
+   */
+  @Param({"C9Y6dlMU0AAF6yh.jpg", "C819Ix6VoAAIcV8.jpg"})
+  public String image;
+
+  private MockFaceApiServer server;
+  private AzureFaceExtractor transform;
+  private StructuredRecord input;
+
+  /**
+   * Counts the images analyzed and the records emitted by each benchmark thread.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Counters {
+    public long images;
+    public long records;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    server = MockFaceApiServer.start().setFacesPerImage(facesPerImage);
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder()
+      .setSourceFieldName("body")
+      .setContinueOnError(false)
+      .setFacesSubscriptionKey("benchmark")
+      .setEmotionSubscriptionKey("benchmark")
+      .setFaceEndpoint(server.getFaceEndpoint())
+      .setEmotionEndpoint(server.getEmotionEndpoint())
+      .setMaxInFlightRequests(concurrency)
+      .build();
+    transform = new AzureFaceExtractor(config);
+    transform.initialize(new MockTransformContext());
+    input = StructuredRecord.builder(INPUT).set("body", readImage(image)).build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    transform.destroy();
+    server.close();
+  }
+
+  @Benchmark
+  public void transform(Counters counters) throws Exception {
+    MockEmitter<StructuredRecord> emitter = new MockEmitter<>();
+    for (int i = 0; i < concurrency; i++) {
+      transform.transform(input, emitter);
+    }
+    transform.flush(emitter);
+    counters.images += concurrency;
+    counters.records += emitter.getEmitted().size();
+  }
+
+  private static byte[] readImage(String fileName) throws IOException {
+    try (InputStream input = AzureFaceExtractorBenchmark.class.getClassLoader().getResourceAsStream(fileName)) {
+      return ByteStreams.toByteArray(input);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+/**
+ * An input image together with the outcome of analyzing it.
+ */
+final class AnalyzedImage {
+  private final StructuredRecord input;
+  private final ImageData imageData;
+  private final String imageHash;
+  private final FaceAnalysis analysis;
+  private final Exception error;
+  private final long latencyMillis;
+  private byte[] imageBytes;
+
+  private AnalyzedImage(StructuredRecord input, ImageData imageData, @Nullable String imageHash,
+                        @Nullable FaceAnalysis analysis, @Nullable Exception error, long latencyMillis) {
+    this.input = input;
+    this.imageData = imageData;
+    this.imageHash = imageHash;
+    this.analysis = analysis;
+    this.error = error;
+    this.latencyMillis = latencyMillis;
+  }
+
+  static AnalyzedImage success(StructuredRecord input, ImageData imageData, @Nullable String imageHash,
+                               FaceAnalysis analysis, long latencyMillis) {
+    return new AnalyzedImage(input, imageData, imageHash, analysis, null, latencyMillis);
+  }
+
+  static AnalyzedImage failure(StructuredRecord input, ImageData imageData, @Nullable String imageHash,
+                               Exception error, long latencyMillis) {
+    return new AnalyzedImage(input, imageData, imageHash, null, error, latencyMillis);
+  }
+
+  /**
+   * Returns the input record the image was read from.
+   */
+  StructuredRecord getInput() {
+    return input;
+  }
+
+  ImageData getImageData() {
+    return imageData;
+  }
+
+  /**
+   * Returns the content of the image as an array. An image that is read from a file is only read once, however many
+   * records it is written to.
+   */
+  synchronized byte[] getImageBytes() throws IOException {
+    if (imageBytes == null) {
+      imageBytes = imageData.toByteArray();
+    }
+    return imageBytes;
+  }
+
+  /**
+   * Returns the content hash of the image, or {@code null} if nothing needed it.
+   */
+  @Nullable
+  String getImageHash() {
+    return imageHash;
+  }
+
+  /**
+   * Returns the analysis of the image, or {@code null} if the analysis failed.
+   */
+  @Nullable
+  FaceAnalysis getAnalysis() {
+    return analysis;
+  }
+
+  @Nullable
+  Exception getError() {
+    return error;
+  }
+
+  long getLatencyMillis() {
+    return latencyMillis;
+  }
+}
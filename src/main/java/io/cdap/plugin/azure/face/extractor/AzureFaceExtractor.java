@@ -16,10 +16,8 @@
 
 package io.cdap.plugin.azure.face.extractor;
 
-import cognitivej.vision.emotion.Emotion;
-import cognitivej.vision.face.scenario.FaceScenarios;
-import cognitivej.vision.face.task.Face;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.cdap.cdap.api.annotation.Description;
 import io.cdap.cdap.api.annotation.Name;
 import io.cdap.cdap.api.annotation.Plugin;
@@ -27,17 +25,40 @@ import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.cdap.etl.api.Emitter;
 import io.cdap.cdap.etl.api.FailureCollector;
+import io.cdap.cdap.etl.api.InvalidEntry;
 import io.cdap.cdap.etl.api.PipelineConfigurer;
 import io.cdap.cdap.etl.api.StageSubmitterContext;
 import io.cdap.cdap.etl.api.Transform;
 import io.cdap.cdap.etl.api.TransformContext;
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.EmotionSource;
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.FaceAttribute;
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.ImageOutput;
+import org.apache.hadoop.conf.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
 
 /**
  * Extracts faces from an image using the Azure Cognitive APIs
@@ -47,39 +68,47 @@ import java.util.Map;
 @Description("Extracts the faces in a given image using Azure Cognitive APIs.")
 public final class AzureFaceExtractor extends Transform<StructuredRecord, StructuredRecord> {
   private static final Logger LOG = LoggerFactory.getLogger(AzureFaceExtractor.class);
+  // Deferred images can be retried later, like requests Azure throttled
+  private static final int DEFERRED_ERROR_CODE = 429;
 
   private final AzureFaceExtractorConfig config;
-  private static final Schema outputSchema =
-    Schema.recordOf("output",
-                    Schema.Field.of("raw_image_data", Schema.nullableOf(Schema.of(Schema.Type.BYTES))),
-                    Schema.Field.of("rectangle_left", Schema.nullableOf(Schema.of(Schema.Type.INT))),
-                    Schema.Field.of("rectangle_top", Schema.nullableOf(Schema.of(Schema.Type.INT))),
-                    Schema.Field.of("rectangle_height", Schema.nullableOf(Schema.of(Schema.Type.INT))),
-                    Schema.Field.of("rectangle_width", Schema.nullableOf(Schema.of(Schema.Type.INT))),
-                    Schema.Field.of("face_id", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
-                    Schema.Field.of("age", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("mustache", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("beard", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("sideburns", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("gender", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
-                    Schema.Field.of("glasses", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
-                    Schema.Field.of("head_pose_roll", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("head_pose_yaw", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("head_pose_pitch", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("smile", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("happiness", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("neutral", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("surprise", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("fear", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("anger", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("contempt", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("disgust", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
-                    Schema.Field.of("sadness", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))));
-  private FaceScenarios faceScenarios;
+  private FaceRecordWriter writer;
+  private FaceApiClient faceApiClient;
+  private FaceMetrics metrics;
+  private ExecutorService requestExecutor;
+  private FaceAnalysisCache cache;
+  private FaceResultStore store;
+  private CircuitBreaker circuitBreaker;
+  private FacePreFilter preFilter;
+  private ExecutorService analysisExecutor;
+  private CompletionService<List<AnalyzedImage>> analysisService;
+  private Emitter<StructuredRecord> lastEmitter;
+  private int inFlight;
+  private List<StructuredRecord> batch;
+  private int maxTileEdge;
+  private long batchStartNanos;
+  private Integer microBatchTimeBudgetMillis;
+  private long budgetDeadlineNanos;
+  private boolean budgetStarted;
+  private long budgetTaskAttemptId;
+  private int deferredImages;
+  private Configuration hadoopConfiguration;
+  private boolean hashImages;
+  private boolean emotionApiNeeded;
+
+  // Only set by tests. CDAP creates plugins without calling a constructor and only injects the config, so this is
+  // null at runtime and the Spark task is looked up directly.
+  private final Supplier<SparkTask> sparkTaskSupplier;
 
   @VisibleForTesting
   public AzureFaceExtractor(AzureFaceExtractorConfig config) {
+    this(config, null);
+  }
+
+  @VisibleForTesting
+  AzureFaceExtractor(AzureFaceExtractorConfig config, @Nullable Supplier<SparkTask> sparkTaskSupplier) {
     this.config = config;
+    this.sparkTaskSupplier = sparkTaskSupplier;
   }
 
   @Override
@@ -89,8 +118,17 @@ public final class AzureFaceExtractor extends Transform<StructuredRecord, Struct
     FailureCollector failureCollector = pipelineConfigurer.getStageConfigurer().getFailureCollector();
 
     config.validate(failureCollector, inputSchema);
+    // Batch and streaming pipelines both run on Spark, so only MapReduce is known not to be streaming
+    config.validateEngine(failureCollector, pipelineConfigurer.getEngine(), null);
+    failureCollector.getOrThrowException();
 
-    pipelineConfigurer.getStageConfigurer().setOutputSchema(outputSchema);
+    Schema schema = config.containsMacro(AzureFaceExtractorConfig.IMAGE_OUTPUT)
+      || config.containsMacro(AzureFaceExtractorConfig.OUTPUT_MODE)
+      || config.containsMacro(AzureFaceExtractorConfig.FACE_ATTRIBUTES)
+      ? null
+      : FaceRecordWriter.createOutputSchema(config.getImageOutput(), config.getOutputMode(),
+                                            config.getFaceAttributes());
+    pipelineConfigurer.getStageConfigurer().setOutputSchema(schema);
   }
 
   @Override
@@ -106,65 +144,637 @@ public final class AzureFaceExtractor extends Transform<StructuredRecord, Struct
   @Override
   public void initialize(TransformContext context) throws Exception {
     super.initialize(context);
-    faceScenarios = new FaceScenarios(config.getFacesSubscriptionKey(),
-                                      config.getEmotionSubscriptionKey());
+    // Macros are only resolved at runtime, so the engine is checked again on the values the stage actually runs with
+    FailureCollector failureCollector = context.getFailureCollector();
+    SparkTask sparkTask = getSparkTask();
+    config.validateEngine(failureCollector, SparkTask.getEngine(sparkTask),
+                          sparkTask != null && sparkTask.isStreaming());
+    failureCollector.getOrThrowException();
+    writer = new FaceRecordWriter(config.getImageOutput(), config.getOutputMode(), config.getFaceAttributes());
+    metrics = new FaceMetrics(context.getMetrics());
+    // Emotion is requested with the detect call unless it comes from the Emotion API
+    Set<FaceAttribute> detectAttributes = EnumSet.noneOf(FaceAttribute.class);
+    detectAttributes.addAll(config.getFaceAttributes());
+    if (config.getEmotionSource() == EmotionSource.EMOTION) {
+      detectAttributes.remove(FaceAttribute.EMOTION);
+    }
+    emotionApiNeeded = config.isEmotionApiNeeded();
+    FaceApiClient.Builder clientBuilder = FaceApiClient.builder()
+      .setFaceEndpoint(config.getFaceEndpoint(), config.getFacesSubscriptionKey())
+      .setEmotionEndpoint(config.getEmotionEndpoint(), config.getEmotionSubscriptionKey());
+    for (Map.Entry<String, String> endpointKey : config.getAdditionalFaceKeys()) {
+      clientBuilder.addFaceEndpoint(endpointKey.getKey(), endpointKey.getValue());
+    }
+    for (Map.Entry<String, String> endpointKey : config.getAdditionalEmotionKeys()) {
+      clientBuilder.addEmotionEndpoint(endpointKey.getKey(), endpointKey.getValue());
+    }
+    faceApiClient = clientBuilder
+      .setFaceAttributes(detectAttributes)
+      // Every image in flight makes a face and an emotion call at the same time
+      .setMaxConcurrentCalls(2 * config.getMaxInFlightRequests())
+      .setRetryPolicy(new RetryPolicy(config.getMaxRetries(), config.getInitialRetryDelayMillis(),
+                                      config.getMaxRetryDelayMillis()))
+      .setRequestsPerSecond(config.getRequestsPerSecond())
+      .setTimeouts(config.getConnectTimeoutMillis(), config.getReadTimeoutMillis())
+      .setHedging(config.getHedgePercentile(), config.getHedgeMaxExtraPercent())
+      .setMetrics(metrics)
+      .build();
+    requestExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                                                      .setNameFormat("azure-face-request-%d")
+                                                      .setDaemon(true)
+                                                      .build());
+    if (config.getCacheSize() > 0) {
+      String spillDirectory = config.getCacheSpillDirectory();
+      cache = new FaceAnalysisCache(config.getCacheSize(), config.getCacheTtlSeconds(),
+                                    spillDirectory == null ? null : new File(spillDirectory), context.getMetrics());
+    }
+    hadoopConfiguration = new Configuration();
+    String resultStorePath = config.getResultStorePath();
+    if (resultStorePath != null) {
+      store = new FaceResultStore(resultStorePath, config.getFaceAttributes(), config.getEmotionSource(),
+                                  hadoopConfiguration, context.getMetrics());
+    }
+    Double sensitivity = config.getPreFilterSensitivity();
+    if (sensitivity != null) {
+      preFilter = new FacePreFilter(sensitivity);
+    }
+    Double failureRate = config.getCircuitBreakerFailureRate();
+    if (failureRate != null) {
+      circuitBreaker = new CircuitBreaker(failureRate, config.getCircuitBreakerOpenSeconds(), getProbeTimeoutMillis());
+    }
+    microBatchTimeBudgetMillis = config.getMicroBatchTimeBudgetMillis();
+    hashImages = cache != null || store != null || config.getImageOutput() == ImageOutput.HASH;
+    if (config.getBatchSize() > 1) {
+      batch = new ArrayList<>();
+      maxTileEdge = TiledCanvas.getMaxTileEdge(config.getBatchSize());
+    }
+    if (config.isPipelined()) {
+      analysisExecutor = Executors.newFixedThreadPool(config.getMaxInFlightRequests(), new ThreadFactoryBuilder()
+        .setNameFormat("azure-face-analysis-%d")
+        .setDaemon(true)
+        .build());
+      analysisService = new ExecutorCompletionService<>(analysisExecutor);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    super.destroy();
+    if (batch != null && !batch.isEmpty() && lastEmitter != null) {
+      try {
+        flushBatch(lastEmitter);
+      } catch (Exception e) {
+        LOG.error("Failed to extract faces from the last batch of images.", e);
+      }
+    }
+    if (analysisService != null) {
+      // There are no more input records, so whatever is still in flight is emitted to the last emitter we were given.
+      while (inFlight > 0) {
+        try {
+          emitCompleted(analysisService.take(), lastEmitter);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          LOG.warn("Interrupted while waiting for {} in flight images to complete.", inFlight);
+          break;
+        } catch (Exception e) {
+          LOG.error("Failed to extract faces from an in flight image.", e);
+        }
+      }
+      analysisExecutor.shutdownNow();
+    }
+    if (deferredImages > 0) {
+      LOG.warn("Sent {} images to the error port because the time budget of {} ms was used up.", deferredImages,
+               microBatchTimeBudgetMillis);
+    }
+    if (requestExecutor != null) {
+      requestExecutor.shutdownNow();
+    }
+    if (faceApiClient != null) {
+      try {
+        faceApiClient.close();
+      } catch (IOException e) {
+        LOG.warn("Failed to close the Azure Face API client.", e);
+      }
+    }
+    if (cache != null) {
+      LOG.info("Face analysis cache had {} hits and {} misses.", cache.getHitCount(), cache.getMissCount());
+      try {
+        cache.close();
+      } catch (IOException e) {
+        LOG.warn("Failed to delete the face analysis cache spill directory.", e);
+      }
+    }
   }
 
   @Override
   public void transform(StructuredRecord in, Emitter<StructuredRecord> emitter) throws Exception {
-    if (in.get(config.getSourceFieldName()) != null) {
-      InputStream inputStream = new ByteArrayInputStream((byte[]) in.get(config.getSourceFieldName()));
-      List<Face> faces = faceScenarios.findFaces(inputStream);
-      inputStream.reset();
-      List<Emotion> emotions = faceScenarios.findEmotionFaces(inputStream);
-      if (faces != null) {
-        for (Face face : faces) {
-          try {
-            Emotion theEmotion = null;
-            for (Emotion e : emotions) {
-              if (e.faceRectangle.left == face.faceRectangle.left && e.faceRectangle.top == face.faceRectangle.top) {
-                theEmotion = e;
-                break;
-              }
-            }
-            StructuredRecord.Builder outputBuilder = StructuredRecord.builder(outputSchema)
-              .set("raw_image_data", in.get(config.getSourceFieldName()))
-              .set("rectangle_left", face.faceRectangle.left)
-              .set("rectangle_top", face.faceRectangle.top)
-              .set("rectangle_height", face.faceRectangle.height)
-              .set("rectangle_width", face.faceRectangle.width)
-              .set("face_id", face.faceId)
-              .set("age", face.faceAttributesResp.age)
-              .set("mustache", face.faceAttributesResp.facialHair.mustache)
-              .set("beard", face.faceAttributesResp.facialHair.beard)
-              .set("sideburns", face.faceAttributesResp.facialHair.sideburns)
-              .set("gender", face.faceAttributesResp.gender.name())
-              .set("glasses", face.faceAttributesResp.glasses.name())
-              .set("head_pose_roll", face.faceAttributesResp.headPose.roll)
-              .set("head_pose_yaw", face.faceAttributesResp.headPose.yaw)
-              .set("head_pose_pitch", face.faceAttributesResp.headPose.pitch)
-              .set("smile", face.faceAttributesResp.smile);
-
-            if (theEmotion != null) {
-              for (Map.Entry<Emotion.EmotionScore, Double> emotionScore : theEmotion.scores.scores().entrySet()) {
-                if (emotionScore.getKey().name().toLowerCase().equals("suprise")) {
-                  outputBuilder.set("surprise", emotionScore.getValue());
-                } else {
-                  outputBuilder.set(emotionScore.getKey().name().toLowerCase(), emotionScore.getValue());
-                }
-              }
-            }
-            emitter.emit(outputBuilder.build());
-          } catch (Exception e) {
-            if (!config.getContinueOnError()) {
-              throw e;
-            } else {
-              LOG.warn("Received an exception from Azure webservices. Ignoring because continue on error is true.", e);
-            }
+    lastEmitter = emitter;
+    if (microBatchTimeBudgetMillis != null) {
+      // The same stage may process several partitions, of the same or later micro-batches, so the budget restarts
+      // whenever a different task hands it records
+      SparkTask sparkTask = getSparkTask();
+      long taskAttemptId = sparkTask == null ? -1L : sparkTask.getAttemptId();
+      if (!budgetStarted || taskAttemptId != budgetTaskAttemptId) {
+        budgetDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(microBatchTimeBudgetMillis);
+        budgetTaskAttemptId = taskAttemptId;
+        budgetStarted = true;
+      }
+    }
+    ImageData imageData = toImageData(in.get(config.getSourceFieldName()));
+    if (imageData != null) {
+      if (batch != null && isTileable(imageData)) {
+        if (batch.isEmpty()) {
+          batchStartNanos = System.nanoTime();
+        }
+        batch.add(in);
+      } else {
+        submit(Collections.singletonList(in), () -> Collections.singletonList(analyze(in, imageData)), emitter);
+      }
+    }
+    if (batch != null && !batch.isEmpty() && (batch.size() >= config.getBatchSize()
+      || elapsedMillis(batchStartNanos) >= config.getBatchTimeoutMillis())) {
+      flushBatch(emitter);
+    }
+    if (analysisService != null) {
+      Future<List<AnalyzedImage>> completed;
+      while ((completed = analysisService.poll()) != null) {
+        emitCompleted(completed, emitter);
+      }
+    }
+  }
+
+  /**
+   * Returns the Spark task that runs the stage, or null if it runs on MapReduce.
+   */
+  @Nullable
+  private SparkTask getSparkTask() {
+    return sparkTaskSupplier == null ? SparkTask.current() : sparkTaskSupplier.get();
+  }
+
+  /**
+   * Wraps the value of the source field without copying it. A string value is the path of the image file.
+   */
+  @Nullable
+  private ImageData toImageData(@Nullable Object value) {
+    if (value == null) {
+      return null;
+    }
+    if (value instanceof ByteBuffer) {
+      return ImageData.of((ByteBuffer) value);
+    }
+    if (value instanceof String) {
+      return ImageData.of((String) value, hadoopConfiguration);
+    }
+    return ImageData.of((byte[]) value);
+  }
+
+  /**
+   * Runs the analysis of the given inputs and emits its results, or submits it to the analysis pool when pipelined.
+   * Submitting blocks only when the maximum number of analyses are already in flight. The inputs are deferred instead
+   * if the time budget of the micro-batch is used up before the analysis can start.
+   */
+  private void submit(List<StructuredRecord> inputs, Callable<List<AnalyzedImage>> analysis,
+                      Emitter<StructuredRecord> emitter) throws Exception {
+    if (isBudgetUsedUp()) {
+      defer(inputs, emitter);
+      return;
+    }
+    if (analysisService == null) {
+      for (AnalyzedImage analyzed : analysis.call()) {
+        emit(analyzed, emitter);
+      }
+      return;
+    }
+    while (inFlight >= config.getMaxInFlightRequests()) {
+      emitCompleted(analysisService.take(), emitter);
+    }
+    analysisService.submit(analysis);
+    inFlight++;
+  }
+
+  /**
+   * Analyzes the partial batch and waits for all analyses in flight, emitting their results to the given emitter.
+   */
+  @VisibleForTesting
+  void flush(Emitter<StructuredRecord> emitter) throws Exception {
+    if (batch != null && !batch.isEmpty()) {
+      flushBatch(emitter);
+    }
+    while (inFlight > 0) {
+      emitCompleted(analysisService.take(), emitter);
+    }
+  }
+
+  private void emitCompleted(Future<List<AnalyzedImage>> completed,
+                             Emitter<StructuredRecord> emitter) throws Exception {
+    inFlight--;
+    for (AnalyzedImage analyzed : getResult(completed)) {
+      emit(analyzed, emitter);
+    }
+  }
+
+  private void flushBatch(Emitter<StructuredRecord> emitter) throws Exception {
+    List<StructuredRecord> inputs = batch;
+    batch = new ArrayList<>();
+    submit(inputs, () -> analyzeBatch(inputs), emitter);
+  }
+
+  /**
+   * Returns whether the time budget of the micro-batch is used up. Without a budget, it never is.
+   */
+  private boolean isBudgetUsedUp() {
+    return microBatchTimeBudgetMillis != null && budgetStarted && System.nanoTime() - budgetDeadlineNanos >= 0;
+  }
+
+  /**
+   * Sends the inputs to the error port without analyzing them, so that a streaming micro-batch does not overrun its
+   * interval. The inputs are unchanged, so they can be replayed in a later micro-batch.
+   */
+  private void defer(List<StructuredRecord> inputs, Emitter<StructuredRecord> emitter) {
+    if (deferredImages == 0) {
+      LOG.warn("The time budget of {} ms for this micro-batch is used up. The remaining images are sent to the error " +
+                 "port with error code {}.", microBatchTimeBudgetMillis, DEFERRED_ERROR_CODE);
+    }
+    deferredImages += inputs.size();
+    metrics.recordDeferred(inputs.size());
+    for (StructuredRecord input : inputs) {
+      emitter.emitError(new InvalidEntry<>(DEFERRED_ERROR_CODE, "The time budget of the micro-batch was used up " +
+        "before the image could be analyzed.", input));
+    }
+  }
+
+  /**
+   * Returns whether the image is small enough to be tiled into a batch. Only the image header is read.
+   */
+  private boolean isTileable(ImageData imageData) {
+    try {
+      Dimension size = Images.readSize(imageData);
+      return size != null && Math.max(size.width, size.height) <= maxTileEdge;
+    } catch (IOException | RuntimeException e) {
+      // The image is analyzed on its own, which reports the failure
+      return false;
+    }
+  }
+
+  /**
+   * Analyzes the image, capturing any failure in the returned {@link AnalyzedImage} so it can be handled once the
+   * result is emitted.
+   */
+  private AnalyzedImage analyze(StructuredRecord input, ImageData imageData) {
+    long start = System.nanoTime();
+    String imageHash = null;
+    try {
+      if (hashImages) {
+        imageHash = imageData.hash();
+      }
+      String key = imageHash;
+      FaceAnalysis analysis = cache == null
+        ? load(imageData, key)
+        : cache.get(key, () -> load(imageData, key));
+      return AnalyzedImage.success(input, imageData, imageHash, analysis, elapsedMillis(start));
+    } catch (Exception e) {
+      return AnalyzedImage.failure(input, imageData, imageHash, e, elapsedMillis(start));
+    }
+  }
+
+  /**
+   * Analyzes a batch of small images with a single call to each service, by tiling the images that are not cached
+   * onto one canvas. Images that cannot be decoded, and a canvas that would exceed the upload limit, fall back to
+   * analyzing the images on their own. So do the images of a canvas with more faces than the detect call returns.
+   */
+  private List<AnalyzedImage> analyzeBatch(List<StructuredRecord> inputs) {
+    long start = System.nanoTime();
+    List<ImageData> images = new ArrayList<>();
+    for (StructuredRecord input : inputs) {
+      images.add(toImageData(input.get(config.getSourceFieldName())));
+    }
+    AnalyzedImage[] results = new AnalyzedImage[images.size()];
+    List<Integer> tiled = new ArrayList<>();
+    List<String> tiledHashes = new ArrayList<>();
+    List<BufferedImage> tiles = new ArrayList<>();
+    for (int i = 0; i < images.size(); i++) {
+      ImageData imageData = images.get(i);
+      String imageHash = null;
+      try {
+        if (hashImages) {
+          imageHash = imageData.hash();
+        }
+        FaceAnalysis known = lookup(imageHash);
+        BufferedImage image = known == null ? Images.decode(imageData) : null;
+        if (known != null) {
+          results[i] = AnalyzedImage.success(inputs.get(i), imageData, imageHash, known, elapsedMillis(start));
+        } else if (image == null) {
+          results[i] = analyze(inputs.get(i), imageData);
+        } else if (!passesPreFilter(imageData, image)) {
+          results[i] = AnalyzedImage.success(inputs.get(i), imageData, imageHash, noFaces(), elapsedMillis(start));
+        } else {
+          tiled.add(i);
+          tiledHashes.add(imageHash);
+          tiles.add(image);
+        }
+      } catch (Exception e) {
+        results[i] = AnalyzedImage.failure(inputs.get(i), imageData, imageHash, e, elapsedMillis(start));
+      }
+    }
+
+    List<FaceAnalysis> analyses = null;
+    Exception error = null;
+    if (tiled.size() > 1) {
+      try {
+        TiledCanvas canvas = TiledCanvas.create(tiles, config.getJpegQuality() / 100f);
+        if (canvas.getImageData().getLength() <= Images.MAX_UPLOAD_BYTES) {
+          FaceAnalysis analysis = analyzeUpload(canvas.getImageData());
+          if (TiledCanvas.isTruncated(analysis)) {
+            metrics.recordTruncatedBatch(tiled.size());
+          } else {
+            analyses = canvas.split(analysis);
+            metrics.recordBatch(tiled.size());
+          }
+        }
+      } catch (Exception e) {
+        error = e;
+      }
+    }
+    for (int k = 0; k < tiled.size(); k++) {
+      int i = tiled.get(k);
+      String imageHash = tiledHashes.get(k);
+      if (error != null) {
+        results[i] = AnalyzedImage.failure(inputs.get(i), images.get(i), imageHash, error, elapsedMillis(start));
+      } else if (analyses == null) {
+        results[i] = analyze(inputs.get(i), images.get(i));
+      } else {
+        remember(imageHash, analyses.get(k));
+        results[i] = AnalyzedImage.success(inputs.get(i), images.get(i), imageHash, analyses.get(k),
+                                           elapsedMillis(start));
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Returns the analysis of the image from the result store, or calls the services and stores their result.
+   */
+  private FaceAnalysis load(ImageData imageData, @Nullable String imageHash) throws Exception {
+    FaceAnalysis analysis = store == null ? null : store.get(imageHash);
+    if (analysis == null) {
+      // Skipped images are not stored, so they are analyzed once the pre-filter changes
+      if (!passesPreFilter(imageData, null)) {
+        return noFaces();
+      }
+      analysis = callServices(imageData);
+      if (store != null) {
+        store.put(imageHash, analysis);
+      }
+    }
+    return analysis;
+  }
+
+  /**
+   * Returns the analysis of the image from the cache or the result store, or {@code null} if neither has it.
+   */
+  @Nullable
+  private FaceAnalysis lookup(@Nullable String imageHash) {
+    FaceAnalysis analysis = cache == null ? null : cache.getIfPresent(imageHash);
+    if (analysis == null && store != null) {
+      analysis = store.get(imageHash);
+      if (analysis != null && cache != null) {
+        cache.put(imageHash, analysis);
+      }
+    }
+    return analysis;
+  }
+
+  private void remember(@Nullable String imageHash, FaceAnalysis analysis) {
+    if (cache != null) {
+      cache.put(imageHash, analysis);
+    }
+    if (store != null) {
+      store.put(imageHash, analysis);
+    }
+  }
+
+  /**
+   * Returns whether the image should be sent to Azure, which is the case unless the pre-filter is enabled and finds
+   * no skin region large enough for a face. The image is decoded again unless the decoded image is given.
+   */
+  private boolean passesPreFilter(ImageData imageData, @Nullable BufferedImage decoded) {
+    if (preFilter == null) {
+      return true;
+    }
+    boolean passed;
+    try {
+      passed = decoded == null ? preFilter.mayContainFaces(imageData) : preFilter.mayContainFaces(decoded, 1.0d);
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Failed to pre-filter an image, sending it to Azure.", e);
+      passed = true;
+    }
+    metrics.recordPreFilter(passed);
+    return passed;
+  }
+
+  private FaceAnalysis noFaces() {
+    return new FaceAnalysis(Collections.emptyList(), emotionApiNeeded ? Collections.emptyList() : null);
+  }
+
+  private FaceAnalysis callServices(ImageData imageData) throws Exception {
+    Images.PreparedImage prepared = prepare(imageData);
+    FaceAnalysis analysis = analyzeUpload(prepared.getData());
+    if (prepared.getScale() != 1.0d) {
+      analysis.rescale(prepared.getScale());
+    }
+    return analysis;
+  }
+
+  /**
+   * Returns the longest a call may take with every attempt timing out after connecting and every retry waiting the
+   * longest delay, which bounds how long the circuit breaker waits for a probe.
+   */
+  private long getProbeTimeoutMillis() {
+    long attemptMillis = (long) config.getConnectTimeoutMillis() + config.getReadTimeoutMillis();
+    long retryDelayMillis = (long) config.getMaxRetries() * config.getMaxRetryDelayMillis();
+    return (config.getMaxRetries() + 1) * attemptMillis + retryDelayMillis;
+  }
+
+  /**
+   * Calls the services for the uploaded image, unless the circuit breaker is open.
+   */
+  private FaceAnalysis analyzeUpload(ImageData uploadData) throws Exception {
+    if (circuitBreaker == null) {
+      return callApis(uploadData);
+    }
+    long permit = circuitBreaker.tryAcquire();
+    if (permit == CircuitBreaker.REJECTED) {
+      throw new CircuitOpenException();
+    }
+    boolean serviceFailed = true;
+    boolean abandoned = false;
+    try {
+      FaceAnalysis analysis = callApis(uploadData);
+      serviceFailed = false;
+      return analysis;
+    } catch (Exception e) {
+      serviceFailed = CircuitBreaker.isServiceFailure(e);
+      abandoned = CircuitBreaker.isAbandoned(e);
+      throw e;
+    } finally {
+      if (abandoned) {
+        circuitBreaker.onAbandoned(permit);
+      } else if (!serviceFailed) {
+        circuitBreaker.onSuccess(permit);
+      } else if (circuitBreaker.onFailure(permit)) {
+        LOG.warn("Opened the circuit breaker after repeated failures of the Azure services. Images are rejected for " +
+                   "{} seconds before the services are probed again.", config.getCircuitBreakerOpenSeconds());
+        metrics.recordCircuitOpened();
+      }
+    }
+  }
+
+  private FaceAnalysis callApis(ImageData uploadData) throws Exception {
+    return emotionApiNeeded
+      ? detectWithEmotionApi(uploadData)
+      : new FaceAnalysis(faceApiClient.detect(uploadData), null);
+  }
+
+  private FaceAnalysis detectWithEmotionApi(ImageData uploadData) throws Exception {
+    // The Face and Emotion APIs are independent, so the emotion call runs on the request pool while the face call
+    // runs on this thread.
+    Future<List<EmotionResult>> emotionsFuture =
+      requestExecutor.submit(() -> faceApiClient.recognizeEmotions(uploadData));
+    List<DetectedFace> faces;
+    try {
+      faces = faceApiClient.detect(uploadData);
+    } catch (Exception e) {
+      emotionsFuture.cancel(true);
+      throw e;
+    }
+    return new FaceAnalysis(faces, getResult(emotionsFuture));
+  }
+
+  /**
+   * Downscales the image if preflight is enabled and the image is too large. If the image cannot be read locally it
+   * is uploaded as is, and the services decide whether they can handle it.
+   */
+  private Images.PreparedImage prepare(ImageData imageData) {
+    Integer maxImageEdge = config.getMaxImageEdge();
+    if (maxImageEdge == null) {
+      return new Images.PreparedImage(imageData, 1.0d);
+    }
+    try {
+      return Images.preflight(imageData, maxImageEdge, config.getJpegQuality() / 100f);
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Failed to preflight an image, uploading it unchanged.", e);
+      return new Images.PreparedImage(imageData, 1.0d);
+    }
+  }
+
+  private void emit(AnalyzedImage analyzed, Emitter<StructuredRecord> emitter) throws Exception {
+    Exception error = analyzed.getError();
+    if (error != null) {
+      metrics.recordImageError(analyzed.getLatencyMillis(), error);
+      handleError(error);
+      // The input goes to the error port, so failed images can be replayed
+      emitter.emitError(new InvalidEntry<>(getErrorCode(error), error.getMessage(), analyzed.getInput()));
+      if (writer.isImageMode()) {
+        emitter.emit(writer.createErrorRecord(analyzed));
+      }
+      return;
+    }
+
+    List<DetectedFace> faces = analyzed.getAnalysis().getFaces();
+    List<EmotionResult> emotions = analyzed.getAnalysis().getEmotions();
+    // Face records are only collected to be nested in the image record
+    List<StructuredRecord> faceRecords = writer.isImageMode()
+      ? new ArrayList<>(faces == null ? 0 : faces.size()) : Collections.emptyList();
+    int emittedFaces = 0;
+    int unmatchedFaces = 0;
+    if (faces != null && !faces.isEmpty()) {
+      EmotionMatcher matcher = null;
+      if (emotions != null) {
+        try {
+          matcher = new EmotionMatcher(emotions, config.getEmotionMatchThreshold());
+        } catch (RuntimeException e) {
+          // The faces are still emitted, without emotion scores
+          handleError(e);
+        }
+      }
+      BufferedImage image = null;
+      if (writer.needsDecodedImage()) {
+        try {
+          image = Images.decode(analyzed.getImageData());
+        } catch (IOException e) {
+          handleError(e);
+        }
+      }
+      for (DetectedFace face : faces) {
+        try {
+          Map<String, Double> emotionScores = getEmotionScores(face, matcher);
+          if (emotionScores == null && writer.hasEmotions()) {
+            unmatchedFaces++;
+          }
+          StructuredRecord faceRecord = writer.createFaceRecord(analyzed, image, face, emotionScores);
+          if (writer.isImageMode()) {
+            faceRecords.add(faceRecord);
+          } else {
+            emitter.emit(faceRecord);
           }
+          emittedFaces++;
+        } catch (Exception e) {
+          handleError(e);
         }
       }
-      inputStream.close();
+    }
+    metrics.recordImage(analyzed.getLatencyMillis(), faces == null ? 0 : faces.size(), emittedFaces,
+                        unmatchedFaces);
+    if (writer.isImageMode()) {
+      emitter.emit(writer.createImageRecord(analyzed, faceRecords));
+    }
+  }
+
+  /**
+   * Returns the emotion scores of the face, either from its own attributes when they were requested with the detect
+   * call, or from the Emotion API result that overlaps it.
+   */
+  @Nullable
+  private static Map<String, Double> getEmotionScores(DetectedFace face, @Nullable EmotionMatcher matcher) {
+    DetectedFace.Attributes attributes = face.getFaceAttributes();
+    if (attributes != null && attributes.getEmotion() != null) {
+      return attributes.getEmotion();
+    }
+    EmotionResult emotion = matcher == null ? null : matcher.match(face.getFaceRectangle());
+    return emotion == null ? null : emotion.getScores();
+  }
+
+  /**
+   * Returns the error code of a failed image: the HTTP status returned by Azure, 503 if the image was rejected by the
+   * circuit breaker, or 500 for any other failure.
+   */
+  private static int getErrorCode(Exception error) {
+    if (error instanceof FaceApiException) {
+      return ((FaceApiException) error).getStatusCode();
+    }
+    return error instanceof CircuitOpenException ? 503 : 500;
+  }
+
+  private void handleError(Exception e) throws Exception {
+    if (!config.getContinueOnError()) {
+      throw e;
+    }
+    LOG.warn("Received an exception from Azure webservices. Ignoring because continue on error is true.", e);
+  }
+
+  private static long elapsedMillis(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  private static <T> T getResult(Future<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
     }
   }
 }
@@ -15,13 +15,25 @@
  */
 package io.cdap.plugin.azure.face.extractor;
 
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
 import io.cdap.cdap.api.annotation.Description;
 import io.cdap.cdap.api.annotation.Macro;
 import io.cdap.cdap.api.annotation.Name;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.cdap.api.plugin.PluginConfig;
+import io.cdap.cdap.etl.api.Engine;
 import io.cdap.cdap.etl.api.FailureCollector;
 
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.annotation.Nullable;
 
 /**
@@ -32,14 +44,66 @@ public class AzureFaceExtractorConfig extends PluginConfig {
   public static final String CONTINUE_ON_ERROR = "continueOnError";
   public static final String FACES_SUBSCRIPTION_KEY = "facesSubscriptionKey";
   public static final String EMOTION_SUBSCRIPTION_KEY = "emotionSubscriptionKey";
+  public static final String MAX_IN_FLIGHT_REQUESTS = "maxInFlightRequests";
+  public static final String CACHE_SIZE = "cacheSize";
+  public static final String CACHE_TTL_SECONDS = "cacheTtlSeconds";
+  public static final String CACHE_SPILL_DIRECTORY = "cacheSpillDirectory";
+  public static final String IMAGE_OUTPUT = "imageOutput";
+  public static final String OUTPUT_MODE = "outputMode";
+  public static final String MAX_IMAGE_EDGE = "maxImageEdge";
+  public static final String JPEG_QUALITY = "jpegQuality";
+  public static final String FACE_ENDPOINT = "faceEndpoint";
+  public static final String EMOTION_ENDPOINT = "emotionEndpoint";
+  public static final String REQUESTS_PER_SECOND = "requestsPerSecond";
+  public static final String MAX_RETRIES = "maxRetries";
+  public static final String INITIAL_RETRY_DELAY_MILLIS = "initialRetryDelayMillis";
+  public static final String MAX_RETRY_DELAY_MILLIS = "maxRetryDelayMillis";
+  public static final String EMOTION_SOURCE = "emotionSource";
+  public static final String EMOTION_MATCH_THRESHOLD = "emotionMatchThreshold";
+  public static final String FACE_ATTRIBUTES = "faceAttributes";
+  public static final String BATCH_SIZE = "batchSize";
+  public static final String BATCH_TIMEOUT_MILLIS = "batchTimeoutMillis";
+  public static final String RESULT_STORE_PATH = "resultStorePath";
+  public static final String ADDITIONAL_FACE_KEYS = "additionalFaceKeys";
+  public static final String ADDITIONAL_EMOTION_KEYS = "additionalEmotionKeys";
+  public static final String HEDGE_PERCENTILE = "hedgePercentile";
+  public static final String HEDGE_MAX_EXTRA_PERCENT = "hedgeMaxExtraPercent";
+  public static final String CIRCUIT_BREAKER_FAILURE_RATE = "circuitBreakerFailureRate";
+  public static final String CIRCUIT_BREAKER_OPEN_SECONDS = "circuitBreakerOpenSeconds";
+  public static final String PRE_FILTER_SENSITIVITY = "preFilterSensitivity";
+  public static final String MICRO_BATCH_TIME_BUDGET_MILLIS = "microBatchTimeBudgetMillis";
+  public static final String CONNECT_TIMEOUT_MILLIS = "connectTimeoutMillis";
+  public static final String READ_TIMEOUT_MILLIS = "readTimeoutMillis";
+
+  private static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 1;
+  private static final int DEFAULT_CACHE_SIZE = 0;
+  private static final int DEFAULT_CACHE_TTL_SECONDS = 3600;
+  private static final ImageOutput DEFAULT_IMAGE_OUTPUT = ImageOutput.HASH;
+  private static final OutputMode DEFAULT_OUTPUT_MODE = OutputMode.FACE;
+  private static final EmotionSource DEFAULT_EMOTION_SOURCE = EmotionSource.EMOTION;
+  private static final int DEFAULT_JPEG_QUALITY = 90;
+  private static final double DEFAULT_EMOTION_MATCH_THRESHOLD = 0.5d;
+  private static final int DEFAULT_MAX_RETRIES = 3;
+  private static final int DEFAULT_INITIAL_RETRY_DELAY_MILLIS = 500;
+  private static final int DEFAULT_MAX_RETRY_DELAY_MILLIS = 30000;
+  private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final int DEFAULT_READ_TIMEOUT_MILLIS = 60000;
+  private static final int DEFAULT_BATCH_SIZE = 1;
+  private static final int DEFAULT_BATCH_TIMEOUT_MILLIS = 1000;
+  private static final double DEFAULT_HEDGE_MAX_EXTRA_PERCENT = 5;
+  private static final int DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS = 30;
+  // The smallest face the services detect is 36x36 pixels
+  private static final int MIN_IMAGE_EDGE = 36;
 
   @Name(SOURCE_FIELD_NAME)
-  @Description("Specifies the input field containing the binary pdf data.")
+  @Description("Specifies the input field containing the image data, or the path of the image file if the field is a " +
+    "string.")
   private final String sourceFieldName;
 
   @Name(CONTINUE_ON_ERROR)
   @Macro
-  @Description("Set to true if this plugin should ignore errors.")
+  @Description("Set to true if this plugin should ignore errors. The input records of failed images are sent to the " +
+    "error port.")
   private Boolean continueOnError;
 
   @Name(FACES_SUBSCRIPTION_KEY)
@@ -48,10 +112,238 @@ public class AzureFaceExtractorConfig extends PluginConfig {
   private String facesSubscriptionKey;
 
   @Name(EMOTION_SUBSCRIPTION_KEY)
-  @Description("The Azure emotion API subscription key.")
+  @Description("The Azure emotion API subscription key. Required unless the emotion source is 'detect'.")
   @Macro
+  @Nullable
   private String emotionSubscriptionKey;
 
+  @Name(MAX_IN_FLIGHT_REQUESTS)
+  @Description("The maximum number of images that may be waiting on the Azure services at the same time. When set " +
+    "above 1, images are processed asynchronously and their faces are emitted as the calls complete. Values above 1 " +
+    "are only supported on the MapReduce engine.")
+  @Macro
+  @Nullable
+  private Integer maxInFlightRequests;
+
+  @Name(CACHE_SIZE)
+  @Description("The maximum number of image results to keep in the result cache. Images are identified by a hash of " +
+    "their bytes, so an image that has already been analyzed is not sent to Azure again. Set to 0 to disable the " +
+    "cache.")
+  @Macro
+  @Nullable
+  private Integer cacheSize;
+
+  @Name(CACHE_TTL_SECONDS)
+  @Description("The number of seconds a cached image result remains valid.")
+  @Macro
+  @Nullable
+  private Integer cacheTtlSeconds;
+
+  @Name(CACHE_SPILL_DIRECTORY)
+  @Description("A local directory that results evicted from a full cache are written to, so they can be read back " +
+    "instead of calling Azure again. If not specified, evicted results are discarded.")
+  @Macro
+  @Nullable
+  private String cacheSpillDirectory;
+
+  @Name(IMAGE_OUTPUT)
+  @Description("How the source image is represented on each face record. 'none' omits it, 'hash' adds a hash of the " +
+    "image bytes that can be used to join back to the source, 'thumbnail' adds the face cropped out of the image as " +
+    "a JPEG, and 'full' adds the entire image.")
+  @Macro
+  @Nullable
+  private String imageOutput;
+
+  @Name(OUTPUT_MODE)
+  @Description("Whether to emit one record per detected face ('face'), or one record per image ('image') with the " +
+    "detected faces in a nested array along with the face count, processing latency and status of the image.")
+  @Macro
+  @Nullable
+  private String outputMode;
+
+  @Name(MAX_IMAGE_EDGE)
+  @Description("If specified, images whose width or height exceeds this many pixels, or that are larger than the 4 " +
+    "MB service limit, are downscaled to fit and re-encoded as JPEG before they are uploaded. Returned face " +
+    "rectangles are scaled back to the original resolution.")
+  @Macro
+  @Nullable
+  private Integer maxImageEdge;
+
+  @Name(JPEG_QUALITY)
+  @Description("The JPEG quality, from 1 to 100, used when re-encoding downscaled images.")
+  @Macro
+  @Nullable
+  private Integer jpegQuality;
+
+  @Name(FACE_ENDPOINT)
+  @Description("The base URL of the Azure Face API, for example a regional endpoint or a proxy. Defaults to " +
+    "https://westus.api.cognitive.microsoft.com/face/v1.0.")
+  @Macro
+  @Nullable
+  private String faceEndpoint;
+
+  @Name(EMOTION_ENDPOINT)
+  @Description("The base URL of the Azure Emotion API, for example a regional endpoint or a proxy. Defaults to " +
+    "https://westus.api.cognitive.microsoft.com/emotion/v1.0.")
+  @Macro
+  @Nullable
+  private String emotionEndpoint;
+
+  @Name(REQUESTS_PER_SECOND)
+  @Description("The maximum number of requests per second sent with each subscription key from one executor, shared " +
+    "by all of its threads. Stages that use the same key share its rate, and the lowest rate any of them sets " +
+    "applies to all of them. The rate is halved temporarily when Azure throttles a request. If not specified, " +
+    "requests are not rate limited.")
+  @Macro
+  @Nullable
+  private Double requestsPerSecond;
+
+  @Name(MAX_RETRIES)
+  @Description("The maximum number of times a request that was throttled (429), failed (5xx), timed out or lost its " +
+    "connection is retried before the image fails.")
+  @Macro
+  @Nullable
+  private Integer maxRetries;
+
+  @Name(INITIAL_RETRY_DELAY_MILLIS)
+  @Description("The upper bound of the random delay before the first retry, in milliseconds. It doubles with each " +
+    "further retry. A Retry-After header returned by Azure takes precedence.")
+  @Macro
+  @Nullable
+  private Integer initialRetryDelayMillis;
+
+  @Name(MAX_RETRY_DELAY_MILLIS)
+  @Description("The maximum delay between retries, in milliseconds.")
+  @Macro
+  @Nullable
+  private Integer maxRetryDelayMillis;
+
+  @Name(EMOTION_SOURCE)
+  @Description("Where the emotion scores of each face come from. 'emotion' calls the Emotion API for every image " +
+    "and matches its results to the detected faces. 'detect' requests emotion as a face attribute of the Face API " +
+    "detect call, which makes one call per image instead of two and does not need an Emotion API key.")
+  @Macro
+  @Nullable
+  private String emotionSource;
+
+  @Name(EMOTION_MATCH_THRESHOLD)
+  @Description("The minimum intersection over union, between 0 and 1, of the rectangles the Face API and the " +
+    "Emotion API return for a face, for the emotion scores to be assigned to it. Only used when the emotion source " +
+    "is 'emotion'.")
+  @Macro
+  @Nullable
+  private Double emotionMatchThreshold;
+
+  @Name(FACE_ATTRIBUTES)
+  @Description("A comma-separated list of the face attributes to request from the service and include in the " +
+    "output: faceId, age, gender, smile, facialHair, glasses, headPose and emotion. The face rectangle is always " +
+    "included. If not specified, all attributes are included. If empty, only the face rectangles are requested, " +
+    "which is enough for face counts or boxes.")
+  @Macro
+  @Nullable
+  private String faceAttributes;
+
+  @Name(BATCH_SIZE)
+  @Description("The maximum number of small images that are tiled into one canvas and analyzed with a single call. " +
+    "1 disables batching. Values above 1 are only supported on the MapReduce engine.")
+  @Macro
+  @Nullable
+  private Integer batchSize;
+
+  @Name(BATCH_TIMEOUT_MILLIS)
+  @Description("The maximum time, in milliseconds, an image waits for its batch to fill before the batch is " +
+    "analyzed anyway. The timeout is checked as records arrive, and a partial batch is analyzed when the stage " +
+    "finishes.")
+  @Macro
+  @Nullable
+  private Integer batchTimeoutMillis;
+
+  @Name(RESULT_STORE_PATH)
+  @Description("A directory in a file system supported by the cluster, such as HDFS or an object store, that the " +
+    "results of every analyzed image are kept in across runs. A re-run emits the stored results of images it has " +
+    "seen before instead of calling Azure. If not specified, results are not stored.")
+  @Macro
+  @Nullable
+  private String resultStorePath;
+
+  @Name(ADDITIONAL_FACE_KEYS)
+  @Description("Additional Face API endpoint and subscription key pairs, as a comma separated list of endpoint=key, " +
+    "that calls are spread over together with the Face API endpoint and key.")
+  @Macro
+  @Nullable
+  private String additionalFaceKeys;
+
+  @Name(ADDITIONAL_EMOTION_KEYS)
+  @Description("Additional Emotion API endpoint and subscription key pairs, as a comma separated list of " +
+    "endpoint=key, that calls are spread over together with the Emotion API endpoint and key.")
+  @Macro
+  @Nullable
+  private String additionalEmotionKeys;
+
+  @Name(HEDGE_PERCENTILE)
+  @Description("The percentile, greater than 0 and less than 100, of the recent latencies of each service after " +
+    "which a call that has not returned is hedged with a duplicate request, preferably to another endpoint. The " +
+    "first response is used. If not specified, calls are not hedged.")
+  @Macro
+  @Nullable
+  private Double hedgePercentile;
+
+  @Name(HEDGE_MAX_EXTRA_PERCENT)
+  @Description("The maximum number of hedged requests, as a percentage of the calls to each service. Defaults to 5.")
+  @Macro
+  @Nullable
+  private Double hedgeMaxExtraPercent;
+
+  @Name(CIRCUIT_BREAKER_FAILURE_RATE)
+  @Description("The percentage of recent calls to Azure that must fail with a server error, throttling or a network " +
+    "error for the circuit breaker to open. While it is open, images are failed right away without calling Azure, " +
+    "and the services are probed again once the open time has passed. If not specified, there is no circuit " +
+    "breaker.")
+  @Macro
+  @Nullable
+  private Double circuitBreakerFailureRate;
+
+  @Name(CIRCUIT_BREAKER_OPEN_SECONDS)
+  @Description("The number of seconds the circuit breaker stays open before a single call probes whether the " +
+    "services recovered. Defaults to 30.")
+  @Macro
+  @Nullable
+  private Integer circuitBreakerOpenSeconds;
+
+  @Name(PRE_FILTER_SENSITIVITY)
+  @Description("If specified, images are checked locally for skin-colored regions large enough to be a face before " +
+    "they are sent to Azure, and images without any are emitted as having no faces without a call. The sensitivity, " +
+    "from 0 to 1, is how readily images are let through; at 1 an image with any skin-colored pixels is let through. " +
+    "Grayscale images are always let through. If not specified, every image is sent to Azure.")
+  @Macro
+  @Nullable
+  private Double preFilterSensitivity;
+
+  @Name(MICRO_BATCH_TIME_BUDGET_MILLIS)
+  @Description("If specified, the time, in milliseconds, each micro-batch of a streaming pipeline may spend " +
+    "analyzing images, measured from the first record the stage receives in the micro-batch. This is the batch of " +
+    "the streaming engine, not the batch of tiled images. Once the budget is used up, the remaining images are not " +
+    "sent to Azure. Their input records are sent to the error port with error code 429, so they can be replayed in a " +
+    "later micro-batch. Set it below the batch interval to keep a burst of large images from delaying the following " +
+    "micro-batches. The budget restarts with each partition of a micro-batch, and an image whose analysis started " +
+    "before the budget was used up is still analyzed. Only supported in streaming pipelines.")
+  @Macro
+  @Nullable
+  private Integer microBatchTimeBudgetMillis;
+
+  @Name(CONNECT_TIMEOUT_MILLIS)
+  @Description("The maximum time, in milliseconds, to wait for a connection to an Azure endpoint.")
+  @Macro
+  @Nullable
+  private Integer connectTimeoutMillis;
+
+  @Name(READ_TIMEOUT_MILLIS)
+  @Description("The maximum time, in milliseconds, to wait for data from an Azure endpoint once connected, and for " +
+    "a free pooled connection. A call that times out is retried like a network error.")
+  @Macro
+  @Nullable
+  private Integer readTimeoutMillis;
+
   public AzureFaceExtractorConfig(String sourceFieldName, Boolean continueOnError,
                                   String facesSubscriptionKey, String emotionSubscriptionKey) {
     this.sourceFieldName = sourceFieldName;
@@ -65,6 +357,36 @@ public class AzureFaceExtractorConfig extends PluginConfig {
     continueOnError = builder.continueOnError;
     facesSubscriptionKey = builder.facesSubscriptionKey;
     emotionSubscriptionKey = builder.emotionSubscriptionKey;
+    maxInFlightRequests = builder.maxInFlightRequests;
+    cacheSize = builder.cacheSize;
+    cacheTtlSeconds = builder.cacheTtlSeconds;
+    cacheSpillDirectory = builder.cacheSpillDirectory;
+    imageOutput = builder.imageOutput;
+    outputMode = builder.outputMode;
+    maxImageEdge = builder.maxImageEdge;
+    jpegQuality = builder.jpegQuality;
+    faceEndpoint = builder.faceEndpoint;
+    emotionEndpoint = builder.emotionEndpoint;
+    requestsPerSecond = builder.requestsPerSecond;
+    maxRetries = builder.maxRetries;
+    initialRetryDelayMillis = builder.initialRetryDelayMillis;
+    maxRetryDelayMillis = builder.maxRetryDelayMillis;
+    emotionSource = builder.emotionSource;
+    emotionMatchThreshold = builder.emotionMatchThreshold;
+    faceAttributes = builder.faceAttributes;
+    batchSize = builder.batchSize;
+    batchTimeoutMillis = builder.batchTimeoutMillis;
+    resultStorePath = builder.resultStorePath;
+    additionalFaceKeys = builder.additionalFaceKeys;
+    additionalEmotionKeys = builder.additionalEmotionKeys;
+    hedgePercentile = builder.hedgePercentile;
+    hedgeMaxExtraPercent = builder.hedgeMaxExtraPercent;
+    circuitBreakerFailureRate = builder.circuitBreakerFailureRate;
+    circuitBreakerOpenSeconds = builder.circuitBreakerOpenSeconds;
+    preFilterSensitivity = builder.preFilterSensitivity;
+    microBatchTimeBudgetMillis = builder.microBatchTimeBudgetMillis;
+    connectTimeoutMillis = builder.connectTimeoutMillis;
+    readTimeoutMillis = builder.readTimeoutMillis;
   }
 
   public static Builder builder() {
@@ -76,7 +398,37 @@ public class AzureFaceExtractorConfig extends PluginConfig {
       .setSourceFieldName(copy.sourceFieldName)
       .setContinueOnError(copy.continueOnError)
       .setFacesSubscriptionKey(copy.facesSubscriptionKey)
-      .setEmotionSubscriptionKey(copy.emotionSubscriptionKey);
+      .setEmotionSubscriptionKey(copy.emotionSubscriptionKey)
+      .setMaxInFlightRequests(copy.maxInFlightRequests)
+      .setCacheSize(copy.cacheSize)
+      .setCacheTtlSeconds(copy.cacheTtlSeconds)
+      .setCacheSpillDirectory(copy.cacheSpillDirectory)
+      .setImageOutput(copy.imageOutput)
+      .setOutputMode(copy.outputMode)
+      .setMaxImageEdge(copy.maxImageEdge)
+      .setJpegQuality(copy.jpegQuality)
+      .setFaceEndpoint(copy.faceEndpoint)
+      .setEmotionEndpoint(copy.emotionEndpoint)
+      .setRequestsPerSecond(copy.requestsPerSecond)
+      .setMaxRetries(copy.maxRetries)
+      .setInitialRetryDelayMillis(copy.initialRetryDelayMillis)
+      .setMaxRetryDelayMillis(copy.maxRetryDelayMillis)
+      .setEmotionSource(copy.emotionSource)
+      .setEmotionMatchThreshold(copy.emotionMatchThreshold)
+      .setFaceAttributes(copy.faceAttributes)
+      .setBatchSize(copy.batchSize)
+      .setBatchTimeoutMillis(copy.batchTimeoutMillis)
+      .setResultStorePath(copy.resultStorePath)
+      .setAdditionalFaceKeys(copy.additionalFaceKeys)
+      .setAdditionalEmotionKeys(copy.additionalEmotionKeys)
+      .setHedgePercentile(copy.hedgePercentile)
+      .setHedgeMaxExtraPercent(copy.hedgeMaxExtraPercent)
+      .setCircuitBreakerFailureRate(copy.circuitBreakerFailureRate)
+      .setCircuitBreakerOpenSeconds(copy.circuitBreakerOpenSeconds)
+      .setPreFilterSensitivity(copy.preFilterSensitivity)
+      .setMicroBatchTimeBudgetMillis(copy.microBatchTimeBudgetMillis)
+      .setConnectTimeoutMillis(copy.connectTimeoutMillis)
+      .setReadTimeoutMillis(copy.readTimeoutMillis);
   }
 
   public String getSourceFieldName() {
@@ -91,10 +443,192 @@ public class AzureFaceExtractorConfig extends PluginConfig {
     return facesSubscriptionKey;
   }
 
+  @Nullable
   public String getEmotionSubscriptionKey() {
     return emotionSubscriptionKey;
   }
 
+  public int getMaxInFlightRequests() {
+    return maxInFlightRequests == null ? DEFAULT_MAX_IN_FLIGHT_REQUESTS : maxInFlightRequests;
+  }
+
+  public boolean isPipelined() {
+    return getMaxInFlightRequests() > 1;
+  }
+
+  public int getCacheSize() {
+    return cacheSize == null ? DEFAULT_CACHE_SIZE : cacheSize;
+  }
+
+  public int getCacheTtlSeconds() {
+    return cacheTtlSeconds == null ? DEFAULT_CACHE_TTL_SECONDS : cacheTtlSeconds;
+  }
+
+  @Nullable
+  public String getCacheSpillDirectory() {
+    return Strings.isNullOrEmpty(cacheSpillDirectory) ? null : cacheSpillDirectory;
+  }
+
+  public ImageOutput getImageOutput() {
+    if (Strings.isNullOrEmpty(imageOutput)) {
+      return DEFAULT_IMAGE_OUTPUT;
+    }
+    ImageOutput output = ImageOutput.fromValue(imageOutput);
+    if (output == null) {
+      throw new IllegalArgumentException(String.format("Unsupported image output '%s'.", imageOutput));
+    }
+    return output;
+  }
+
+  public OutputMode getOutputMode() {
+    if (Strings.isNullOrEmpty(outputMode)) {
+      return DEFAULT_OUTPUT_MODE;
+    }
+    OutputMode mode = OutputMode.fromValue(outputMode);
+    if (mode == null) {
+      throw new IllegalArgumentException(String.format("Unsupported output mode '%s'.", outputMode));
+    }
+    return mode;
+  }
+
+  /**
+   * Returns the face attributes to request and emit. All attributes are included if the property is not set, and none
+   * if it is empty, in which case only the face rectangles are requested.
+   */
+  public Set<FaceAttribute> getFaceAttributes() {
+    if (faceAttributes == null) {
+      return EnumSet.allOf(FaceAttribute.class);
+    }
+    Set<FaceAttribute> attributes = EnumSet.noneOf(FaceAttribute.class);
+    for (String value : Splitter.on(',').trimResults().omitEmptyStrings().split(faceAttributes)) {
+      FaceAttribute attribute = FaceAttribute.fromValue(value);
+      if (attribute == null) {
+        throw new IllegalArgumentException(String.format("Unsupported face attribute '%s'.", value));
+      }
+      attributes.add(attribute);
+    }
+    return attributes;
+  }
+
+  /**
+   * Returns whether emotion scores are needed from the Emotion API.
+   */
+  public boolean isEmotionApiNeeded() {
+    return getEmotionSource() == EmotionSource.EMOTION && getFaceAttributes().contains(FaceAttribute.EMOTION);
+  }
+
+  public EmotionSource getEmotionSource() {
+    if (Strings.isNullOrEmpty(emotionSource)) {
+      return DEFAULT_EMOTION_SOURCE;
+    }
+    EmotionSource source = EmotionSource.fromValue(emotionSource);
+    if (source == null) {
+      throw new IllegalArgumentException(String.format("Unsupported emotion source '%s'.", emotionSource));
+    }
+    return source;
+  }
+
+  public double getEmotionMatchThreshold() {
+    return emotionMatchThreshold == null ? DEFAULT_EMOTION_MATCH_THRESHOLD : emotionMatchThreshold;
+  }
+
+  /**
+   * Returns the additional Face API endpoint and key pairs, in the order they were configured.
+   */
+  public List<Map.Entry<String, String>> getAdditionalFaceKeys() {
+    return parseEndpointKeys(additionalFaceKeys);
+  }
+
+  /**
+   * Returns the additional Emotion API endpoint and key pairs, in the order they were configured.
+   */
+  public List<Map.Entry<String, String>> getAdditionalEmotionKeys() {
+    return parseEndpointKeys(additionalEmotionKeys);
+  }
+
+  @Nullable
+  public String getResultStorePath() {
+    return Strings.isNullOrEmpty(resultStorePath) ? null : resultStorePath;
+  }
+
+  public int getBatchSize() {
+    return batchSize == null ? DEFAULT_BATCH_SIZE : batchSize;
+  }
+
+  public int getBatchTimeoutMillis() {
+    return batchTimeoutMillis == null ? DEFAULT_BATCH_TIMEOUT_MILLIS : batchTimeoutMillis;
+  }
+
+  @Nullable
+  public Double getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  public double getHedgeMaxExtraPercent() {
+    return hedgeMaxExtraPercent == null ? DEFAULT_HEDGE_MAX_EXTRA_PERCENT : hedgeMaxExtraPercent;
+  }
+
+  @Nullable
+  public Double getPreFilterSensitivity() {
+    return preFilterSensitivity;
+  }
+
+  @Nullable
+  public Integer getMicroBatchTimeBudgetMillis() {
+    return microBatchTimeBudgetMillis;
+  }
+
+  @Nullable
+  public Double getCircuitBreakerFailureRate() {
+    return circuitBreakerFailureRate;
+  }
+
+  public int getCircuitBreakerOpenSeconds() {
+    return circuitBreakerOpenSeconds == null ? DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS : circuitBreakerOpenSeconds;
+  }
+
+  @Nullable
+  public Integer getMaxImageEdge() {
+    return maxImageEdge;
+  }
+
+  public int getJpegQuality() {
+    return jpegQuality == null ? DEFAULT_JPEG_QUALITY : jpegQuality;
+  }
+
+  public String getFaceEndpoint() {
+    return Strings.isNullOrEmpty(faceEndpoint) ? FaceApiClient.DEFAULT_FACE_ENDPOINT : faceEndpoint;
+  }
+
+  public String getEmotionEndpoint() {
+    return Strings.isNullOrEmpty(emotionEndpoint) ? FaceApiClient.DEFAULT_EMOTION_ENDPOINT : emotionEndpoint;
+  }
+
+  @Nullable
+  public Double getRequestsPerSecond() {
+    return requestsPerSecond;
+  }
+
+  public int getMaxRetries() {
+    return maxRetries == null ? DEFAULT_MAX_RETRIES : maxRetries;
+  }
+
+  public int getInitialRetryDelayMillis() {
+    return initialRetryDelayMillis == null ? DEFAULT_INITIAL_RETRY_DELAY_MILLIS : initialRetryDelayMillis;
+  }
+
+  public int getMaxRetryDelayMillis() {
+    return maxRetryDelayMillis == null ? DEFAULT_MAX_RETRY_DELAY_MILLIS : maxRetryDelayMillis;
+  }
+
+  public int getConnectTimeoutMillis() {
+    return connectTimeoutMillis == null ? DEFAULT_CONNECT_TIMEOUT_MILLIS : connectTimeoutMillis;
+  }
+
+  public int getReadTimeoutMillis() {
+    return readTimeoutMillis == null ? DEFAULT_READ_TIMEOUT_MILLIS : readTimeoutMillis;
+  }
+
   public void validate(FailureCollector failureCollector, @Nullable Schema inputSchema) {
     if (inputSchema == null) {
       failureCollector.addFailure("Could not get the input schema to validate.",
@@ -115,22 +649,391 @@ public class AzureFaceExtractorConfig extends PluginConfig {
       : field.getSchema();
 
     Schema.Type fieldType = nonNullableSchema.getType();
-    if(nonNullableSchema.getLogicalType() != null || fieldType != Schema.Type.BYTES) {
+    // A string field holds the path of the image file rather than its content
+    if (nonNullableSchema.getLogicalType() != null
+      || (fieldType != Schema.Type.BYTES && fieldType != Schema.Type.STRING)) {
       failureCollector.addFailure(
         String.format("Source field '%s' is of unexpected type '%s'.",
                       field.getName(),
                       nonNullableSchema.getDisplayName()),
-        "Ensure it is of type 'bytes'.")
+        "Ensure it is of type 'bytes' or 'string'.")
         .withConfigProperty(SOURCE_FIELD_NAME);
     }
+
+    boolean faceAttributesValid = !containsMacro(FACE_ATTRIBUTES) && validateFaceAttributes(failureCollector);
+    if (!containsMacro(EMOTION_SOURCE) && !Strings.isNullOrEmpty(emotionSource)
+      && EmotionSource.fromValue(emotionSource) == null) {
+      failureCollector.addFailure(String.format("Unsupported emotion source '%s'.", emotionSource),
+                                  String.format("Use one of %s.", Joiner.on(", ").join(EmotionSource.values())))
+        .withConfigProperty(EMOTION_SOURCE);
+    } else if (!containsMacro(EMOTION_SOURCE) && !containsMacro(EMOTION_SUBSCRIPTION_KEY)
+      && faceAttributesValid && isEmotionApiNeeded() && Strings.isNullOrEmpty(emotionSubscriptionKey)) {
+      failureCollector.addFailure("The Emotion API subscription key is required to get emotions from the Emotion API.",
+                                  "Provide the key, set the emotion source to 'detect', or leave out the 'emotion' " +
+                                    "face attribute.")
+        .withConfigProperty(EMOTION_SUBSCRIPTION_KEY);
+    }
+
+    if (!containsMacro(EMOTION_MATCH_THRESHOLD) && emotionMatchThreshold != null
+      && (emotionMatchThreshold <= 0 || emotionMatchThreshold > 1)) {
+      failureCollector.addFailure(
+        String.format("Emotion match threshold '%s' must be greater than 0 and at most 1.", emotionMatchThreshold),
+        "Set a threshold such as 0.5.")
+        .withConfigProperty(EMOTION_MATCH_THRESHOLD);
+    }
+
+    validateMinimum(failureCollector, MAX_IN_FLIGHT_REQUESTS, maxInFlightRequests, 1);
+    validateMinimum(failureCollector, CACHE_SIZE, cacheSize, 0);
+    validateMinimum(failureCollector, CACHE_TTL_SECONDS, cacheTtlSeconds, 1);
+    validateMinimum(failureCollector, MAX_IMAGE_EDGE, maxImageEdge, MIN_IMAGE_EDGE);
+    validateMinimum(failureCollector, JPEG_QUALITY, jpegQuality, 1);
+    if (!containsMacro(JPEG_QUALITY) && jpegQuality != null && jpegQuality > 100) {
+      failureCollector.addFailure(String.format("JPEG quality '%d' must be at most 100.", jpegQuality),
+                                  "Set the JPEG quality to a value between 1 and 100.")
+        .withConfigProperty(JPEG_QUALITY);
+    }
+
+    if (!containsMacro(IMAGE_OUTPUT) && !Strings.isNullOrEmpty(imageOutput)
+      && ImageOutput.fromValue(imageOutput) == null) {
+      failureCollector.addFailure(String.format("Unsupported image output '%s'.", imageOutput),
+                                  String.format("Use one of %s.", Joiner.on(", ").join(ImageOutput.values())))
+        .withConfigProperty(IMAGE_OUTPUT);
+    }
+
+    if (!containsMacro(REQUESTS_PER_SECOND) && requestsPerSecond != null && requestsPerSecond <= 0) {
+      failureCollector.addFailure(String.format("Requests per second '%s' must be greater than 0.", requestsPerSecond),
+                                  "Set a positive rate, or leave it empty to disable rate limiting.")
+        .withConfigProperty(REQUESTS_PER_SECOND);
+    }
+    validateMinimum(failureCollector, MAX_RETRIES, maxRetries, 0);
+    validateMinimum(failureCollector, INITIAL_RETRY_DELAY_MILLIS, initialRetryDelayMillis, 1);
+    validateMinimum(failureCollector, MAX_RETRY_DELAY_MILLIS, maxRetryDelayMillis, 1);
+    validateMinimum(failureCollector, CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis, 1);
+    validateMinimum(failureCollector, READ_TIMEOUT_MILLIS, readTimeoutMillis, 1);
+    validateMinimum(failureCollector, BATCH_SIZE, batchSize, 1);
+    if (!containsMacro(BATCH_SIZE) && batchSize != null && batchSize > TiledCanvas.MAX_TILES) {
+      failureCollector.addFailure(
+        String.format("Batch size '%d' must be at most %d.", batchSize, TiledCanvas.MAX_TILES),
+        "Reduce the batch size.")
+        .withConfigProperty(BATCH_SIZE);
+    }
+    validateMinimum(failureCollector, BATCH_TIMEOUT_MILLIS, batchTimeoutMillis, 1);
+    validateMinimum(failureCollector, MICRO_BATCH_TIME_BUDGET_MILLIS, microBatchTimeBudgetMillis, 1);
+    if (!containsMacro(HEDGE_PERCENTILE) && hedgePercentile != null
+      && (hedgePercentile <= 0 || hedgePercentile >= 100)) {
+      failureCollector.addFailure(
+        String.format("Hedge percentile '%s' must be greater than 0 and less than 100.", hedgePercentile),
+        "Set it to a percentile such as 95.")
+        .withConfigProperty(HEDGE_PERCENTILE);
+    }
+    if (!containsMacro(PRE_FILTER_SENSITIVITY) && preFilterSensitivity != null
+      && (preFilterSensitivity < 0 || preFilterSensitivity > 1)) {
+      failureCollector.addFailure(
+        String.format("Pre-filter sensitivity '%s' must be between 0 and 1.", preFilterSensitivity),
+        "Set it to a value such as 0.5.")
+        .withConfigProperty(PRE_FILTER_SENSITIVITY);
+    }
+    if (!containsMacro(CIRCUIT_BREAKER_FAILURE_RATE) && circuitBreakerFailureRate != null
+      && (circuitBreakerFailureRate <= 0 || circuitBreakerFailureRate > 100)) {
+      failureCollector.addFailure(
+        String.format("Circuit breaker failure rate '%s' must be greater than 0 and at most 100.",
+                      circuitBreakerFailureRate),
+        "Set it to a percentage such as 50.")
+        .withConfigProperty(CIRCUIT_BREAKER_FAILURE_RATE);
+    }
+    validateMinimum(failureCollector, CIRCUIT_BREAKER_OPEN_SECONDS, circuitBreakerOpenSeconds, 1);
+    if (!containsMacro(HEDGE_MAX_EXTRA_PERCENT) && hedgeMaxExtraPercent != null && hedgeMaxExtraPercent <= 0) {
+      failureCollector.addFailure(
+        String.format("Hedge max extra percent '%s' must be greater than 0.", hedgeMaxExtraPercent),
+        "Set it to a positive percentage.")
+        .withConfigProperty(HEDGE_MAX_EXTRA_PERCENT);
+    }
+
+    validateEndpoint(failureCollector, FACE_ENDPOINT, faceEndpoint);
+    validateEndpoint(failureCollector, EMOTION_ENDPOINT, emotionEndpoint);
+    validateEndpointKeys(failureCollector, ADDITIONAL_FACE_KEYS, additionalFaceKeys);
+    validateEndpointKeys(failureCollector, ADDITIONAL_EMOTION_KEYS, additionalEmotionKeys);
+
+    if (!containsMacro(OUTPUT_MODE) && !Strings.isNullOrEmpty(outputMode) && OutputMode.fromValue(outputMode) == null) {
+      failureCollector.addFailure(String.format("Unsupported output mode '%s'.", outputMode),
+                                  String.format("Use one of %s.", Joiner.on(", ").join(OutputMode.values())))
+        .withConfigProperty(OUTPUT_MODE);
+    }
+  }
+
+  /**
+   * Validates that the properties can be used on the given engine. Images that are in flight or waiting for their
+   * batch when the last record is read are only emitted when the stage is destroyed, which the Spark engines do not do
+   * at the end of each partition, so those modes are only supported on MapReduce. The time budget is only supported
+   * in streaming pipelines, which only run on Spark.
+   *
+   * @param streaming whether the pipeline is a streaming pipeline, or null if that is not known, as when a pipeline
+   *                  that runs on Spark is configured
+   */
+  public void validateEngine(FailureCollector failureCollector, @Nullable Engine engine, @Nullable Boolean streaming) {
+    if (!containsMacro(MICRO_BATCH_TIME_BUDGET_MILLIS) && microBatchTimeBudgetMillis != null
+      && (engine == Engine.MAPREDUCE || Boolean.FALSE.equals(streaming))) {
+      failureCollector.addFailure("Time budget per micro-batch is only supported in streaming pipelines.",
+                                  "Remove it, or run the stage in a streaming pipeline.")
+        .withConfigProperty(MICRO_BATCH_TIME_BUDGET_MILLIS);
+    }
+    if (engine != Engine.SPARK) {
+      return;
+    }
+    if (!containsMacro(MAX_IN_FLIGHT_REQUESTS) && isPipelined()) {
+      failureCollector.addFailure(
+        String.format("Max in flight requests '%d' is only supported on the MapReduce engine.", maxInFlightRequests),
+        "Set it to 1, or run the pipeline on MapReduce.")
+        .withConfigProperty(MAX_IN_FLIGHT_REQUESTS);
+    }
+    if (!containsMacro(BATCH_SIZE) && getBatchSize() > 1) {
+      failureCollector.addFailure(
+        String.format("Batch size '%d' is only supported on the MapReduce engine.", batchSize),
+        "Set it to 1, or run the pipeline on MapReduce.")
+        .withConfigProperty(BATCH_SIZE);
+    }
+  }
+
+  /**
+   * Reports unsupported face attributes and returns whether all of them are supported.
+   */
+  private boolean validateFaceAttributes(FailureCollector failureCollector) {
+    if (faceAttributes == null) {
+      return true;
+    }
+    boolean valid = true;
+    for (String value : Splitter.on(',').trimResults().omitEmptyStrings().split(faceAttributes)) {
+      if (FaceAttribute.fromValue(value) == null) {
+        failureCollector.addFailure(String.format("Unsupported face attribute '%s'.", value),
+                                    String.format("Use any of %s.", Joiner.on(", ").join(FaceAttribute.values())))
+          .withConfigProperty(FACE_ATTRIBUTES);
+        valid = false;
+      }
+    }
+    return valid;
+  }
+
+  private void validateEndpoint(FailureCollector failureCollector, String property, @Nullable String endpoint) {
+    if (containsMacro(property) || Strings.isNullOrEmpty(endpoint)) {
+      return;
+    }
+    try {
+      URI uri = new URI(endpoint);
+      if ("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme())) {
+        return;
+      }
+    } catch (URISyntaxException e) {
+      // Reported below
+    }
+    failureCollector.addFailure(String.format("Endpoint '%s' is not a valid HTTP or HTTPS URL.", endpoint),
+                                "Specify the base URL of the service, such as " +
+                                  "'https://westus.api.cognitive.microsoft.com/face/v1.0'.")
+      .withConfigProperty(property);
+  }
+
+  private void validateEndpointKeys(FailureCollector failureCollector, String property, @Nullable String value) {
+    if (containsMacro(property) || Strings.isNullOrEmpty(value)) {
+      return;
+    }
+    for (String pair : Splitter.on(',').trimResults().omitEmptyStrings().split(value)) {
+      int separator = pair.lastIndexOf('=');
+      if (separator <= 0 || separator == pair.length() - 1) {
+        failureCollector.addFailure(String.format("Endpoint and key pair '%s' is not of the form endpoint=key.", pair),
+                                    "Separate the endpoint and the subscription key with '='.")
+          .withConfigProperty(property);
+      } else {
+        validateEndpoint(failureCollector, property, pair.substring(0, separator).trim());
+      }
+    }
+  }
+
+  private static List<Map.Entry<String, String>> parseEndpointKeys(@Nullable String value) {
+    List<Map.Entry<String, String>> endpointKeys = new ArrayList<>();
+    if (Strings.isNullOrEmpty(value)) {
+      return endpointKeys;
+    }
+    for (String pair : Splitter.on(',').trimResults().omitEmptyStrings().split(value)) {
+      // Subscription keys never contain '=', while an endpoint might
+      int separator = pair.lastIndexOf('=');
+      if (separator <= 0 || separator == pair.length() - 1) {
+        throw new IllegalArgumentException(
+          String.format("Endpoint and key pair '%s' is not of the form endpoint=key.", pair));
+      }
+      endpointKeys.add(Maps.immutableEntry(pair.substring(0, separator).trim(), pair.substring(separator + 1).trim()));
+    }
+    return endpointKeys;
+  }
+
+  private void validateMinimum(FailureCollector failureCollector, String property, @Nullable Number value,
+                               long minimum) {
+    if (!containsMacro(property) && value != null && value.longValue() < minimum) {
+      failureCollector.addFailure(
+        String.format("Property '%s' must be at least %d, but is '%s'.", property, minimum, value),
+        String.format("Set '%s' to %d or more.", property, minimum))
+        .withConfigProperty(property);
+    }
+  }
+
+  /**
+   * How the source image is represented on the output records.
+   */
+  public enum ImageOutput {
+    NONE("none"),
+    HASH("hash"),
+    THUMBNAIL("thumbnail"),
+    FULL("full");
+
+    private final String value;
+
+    ImageOutput(String value) {
+      this.value = value;
+    }
+
+    @Nullable
+    public static ImageOutput fromValue(String value) {
+      for (ImageOutput output : values()) {
+        if (output.value.equalsIgnoreCase(value)) {
+          return output;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return value;
+    }
   }
 
+  /**
+   * Whether records are emitted per face or per image.
+   */
+  public enum OutputMode {
+    FACE("face"),
+    IMAGE("image");
+
+    private final String value;
+
+    OutputMode(String value) {
+      this.value = value;
+    }
+
+    @Nullable
+    public static OutputMode fromValue(String value) {
+      for (OutputMode mode : values()) {
+        if (mode.value.equalsIgnoreCase(value)) {
+          return mode;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return value;
+    }
+  }
+
+  /**
+   * The face attributes the Face API can return, named as in its returnFaceAttributes parameter. The face ID is
+   * requested with a parameter of its own.
+   */
+  public enum FaceAttribute {
+    FACE_ID("faceId"),
+    AGE("age"),
+    GENDER("gender"),
+    SMILE("smile"),
+    FACIAL_HAIR("facialHair"),
+    GLASSES("glasses"),
+    HEAD_POSE("headPose"),
+    EMOTION("emotion");
+
+    private final String value;
+
+    FaceAttribute(String value) {
+      this.value = value;
+    }
+
+    @Nullable
+    public static FaceAttribute fromValue(String value) {
+      for (FaceAttribute attribute : values()) {
+        if (attribute.value.equalsIgnoreCase(value)) {
+          return attribute;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return value;
+    }
+  }
+
+  /**
+   * Which service the emotion scores come from.
+   */
+  public enum EmotionSource {
+    EMOTION("emotion"),
+    DETECT("detect");
+
+    private final String value;
+
+    EmotionSource(String value) {
+      this.value = value;
+    }
+
+    @Nullable
+    public static EmotionSource fromValue(String value) {
+      for (EmotionSource source : values()) {
+        if (source.value.equalsIgnoreCase(value)) {
+          return source;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return value;
+    }
+  }
 
   public static final class Builder {
     private String sourceFieldName;
     private Boolean continueOnError;
     private String facesSubscriptionKey;
     private String emotionSubscriptionKey;
+    private Integer maxInFlightRequests;
+    private Integer cacheSize;
+    private Integer cacheTtlSeconds;
+    private String cacheSpillDirectory;
+    private String imageOutput;
+    private String outputMode;
+    private Integer maxImageEdge;
+    private Integer jpegQuality;
+    private String faceEndpoint;
+    private String emotionEndpoint;
+    private Double requestsPerSecond;
+    private Integer maxRetries;
+    private Integer initialRetryDelayMillis;
+    private Integer maxRetryDelayMillis;
+    private String emotionSource;
+    private Double emotionMatchThreshold;
+    private String faceAttributes;
+    private Integer batchSize;
+    private Integer batchTimeoutMillis;
+    private String resultStorePath;
+    private String additionalFaceKeys;
+    private String additionalEmotionKeys;
+    private Double hedgePercentile;
+    private Double hedgeMaxExtraPercent;
+    private Double circuitBreakerFailureRate;
+    private Integer circuitBreakerOpenSeconds;
+    private Double preFilterSensitivity;
+    private Integer microBatchTimeBudgetMillis;
+    private Integer connectTimeoutMillis;
+    private Integer readTimeoutMillis;
 
     private Builder() {
     }
@@ -155,6 +1058,156 @@ public class AzureFaceExtractorConfig extends PluginConfig {
       return this;
     }
 
+    public Builder setMaxInFlightRequests(Integer maxInFlightRequests) {
+      this.maxInFlightRequests = maxInFlightRequests;
+      return this;
+    }
+
+    public Builder setCacheSize(Integer cacheSize) {
+      this.cacheSize = cacheSize;
+      return this;
+    }
+
+    public Builder setCacheTtlSeconds(Integer cacheTtlSeconds) {
+      this.cacheTtlSeconds = cacheTtlSeconds;
+      return this;
+    }
+
+    public Builder setCacheSpillDirectory(String cacheSpillDirectory) {
+      this.cacheSpillDirectory = cacheSpillDirectory;
+      return this;
+    }
+
+    public Builder setImageOutput(String imageOutput) {
+      this.imageOutput = imageOutput;
+      return this;
+    }
+
+    public Builder setOutputMode(String outputMode) {
+      this.outputMode = outputMode;
+      return this;
+    }
+
+    public Builder setMaxImageEdge(Integer maxImageEdge) {
+      this.maxImageEdge = maxImageEdge;
+      return this;
+    }
+
+    public Builder setJpegQuality(Integer jpegQuality) {
+      this.jpegQuality = jpegQuality;
+      return this;
+    }
+
+    public Builder setFaceEndpoint(String faceEndpoint) {
+      this.faceEndpoint = faceEndpoint;
+      return this;
+    }
+
+    public Builder setEmotionEndpoint(String emotionEndpoint) {
+      this.emotionEndpoint = emotionEndpoint;
+      return this;
+    }
+
+    public Builder setRequestsPerSecond(Double requestsPerSecond) {
+      this.requestsPerSecond = requestsPerSecond;
+      return this;
+    }
+
+    public Builder setMaxRetries(Integer maxRetries) {
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    public Builder setInitialRetryDelayMillis(Integer initialRetryDelayMillis) {
+      this.initialRetryDelayMillis = initialRetryDelayMillis;
+      return this;
+    }
+
+    public Builder setMaxRetryDelayMillis(Integer maxRetryDelayMillis) {
+      this.maxRetryDelayMillis = maxRetryDelayMillis;
+      return this;
+    }
+
+    public Builder setEmotionSource(String emotionSource) {
+      this.emotionSource = emotionSource;
+      return this;
+    }
+
+    public Builder setEmotionMatchThreshold(Double emotionMatchThreshold) {
+      this.emotionMatchThreshold = emotionMatchThreshold;
+      return this;
+    }
+
+    public Builder setFaceAttributes(String faceAttributes) {
+      this.faceAttributes = faceAttributes;
+      return this;
+    }
+
+    public Builder setBatchSize(Integer batchSize) {
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    public Builder setBatchTimeoutMillis(Integer batchTimeoutMillis) {
+      this.batchTimeoutMillis = batchTimeoutMillis;
+      return this;
+    }
+
+    public Builder setResultStorePath(String resultStorePath) {
+      this.resultStorePath = resultStorePath;
+      return this;
+    }
+
+    public Builder setAdditionalFaceKeys(String additionalFaceKeys) {
+      this.additionalFaceKeys = additionalFaceKeys;
+      return this;
+    }
+
+    public Builder setAdditionalEmotionKeys(String additionalEmotionKeys) {
+      this.additionalEmotionKeys = additionalEmotionKeys;
+      return this;
+    }
+
+    public Builder setHedgePercentile(Double hedgePercentile) {
+      this.hedgePercentile = hedgePercentile;
+      return this;
+    }
+
+    public Builder setHedgeMaxExtraPercent(Double hedgeMaxExtraPercent) {
+      this.hedgeMaxExtraPercent = hedgeMaxExtraPercent;
+      return this;
+    }
+
+    public Builder setCircuitBreakerFailureRate(Double circuitBreakerFailureRate) {
+      this.circuitBreakerFailureRate = circuitBreakerFailureRate;
+      return this;
+    }
+
+    public Builder setCircuitBreakerOpenSeconds(Integer circuitBreakerOpenSeconds) {
+      this.circuitBreakerOpenSeconds = circuitBreakerOpenSeconds;
+      return this;
+    }
+
+    public Builder setPreFilterSensitivity(Double preFilterSensitivity) {
+      this.preFilterSensitivity = preFilterSensitivity;
+      return this;
+    }
+
+    public Builder setMicroBatchTimeBudgetMillis(Integer microBatchTimeBudgetMillis) {
+      this.microBatchTimeBudgetMillis = microBatchTimeBudgetMillis;
+      return this;
+    }
+
+    public Builder setConnectTimeoutMillis(Integer connectTimeoutMillis) {
+      this.connectTimeoutMillis = connectTimeoutMillis;
+      return this;
+    }
+
+    public Builder setReadTimeoutMillis(Integer readTimeoutMillis) {
+      this.readTimeoutMillis = readTimeoutMillis;
+      return this;
+    }
+
     public AzureFaceExtractorConfig build() {
       return new AzureFaceExtractorConfig(this);
     }
@@ -0,0 +1,194 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending images to Azure while most calls fail, so an outage costs seconds instead of a timeout per image.
+ *
+ * The outcomes of the last calls are kept in a sliding window. Once enough calls were made and the share of them that
+ * failed reaches the configured rate, the circuit opens and calls are rejected right away. After the open time one
+ * probe call is let through: if it succeeds the circuit closes and the window starts over, otherwise it opens again.
+ * A probe that has not completed within the probe timeout is replaced by the next call. Only failures that say
+ * something about the service count, such as server errors, throttling and timeouts. An image the service rejects as
+ * invalid is a successful call as far as the circuit is concerned.
+ *
+ * Every allowed call gets a permit, the generation of the circuit it was made in. The generation changes whenever the
+ * state does, so calls that complete after the circuit moved on, such as calls still in flight when it opened or a
+ * replaced probe, do not change its state.
+ */
+final class CircuitBreaker {
+  /**
+   * The permit of a call that is not allowed.
+   */
+  static final long REJECTED = -1;
+
+  private static final int WINDOW = 50;
+  private static final int MIN_CALLS = 10;
+
+  /**
+   * The state of the circuit.
+   */
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final double failureRatePercent;
+  private final long openMillis;
+  private final long probeTimeoutMillis;
+  private final boolean[] failed = new boolean[WINDOW];
+  private int calls;
+  private int next;
+  private int failures;
+  private State state = State.CLOSED;
+  private long generation;
+  private long openedAtMillis;
+  private long probeStartedAtMillis;
+
+  CircuitBreaker(double failureRatePercent, long openSeconds, long probeTimeoutMillis) {
+    this.failureRatePercent = failureRatePercent;
+    this.openMillis = TimeUnit.SECONDS.toMillis(openSeconds);
+    this.probeTimeoutMillis = probeTimeoutMillis;
+  }
+
+  /**
+   * Returns the permit of a call that may be made, or {@link #REJECTED} if it may not. Every call that is allowed must
+   * be followed by {@link #onSuccess}, {@link #onFailure} or {@link #onAbandoned} with its permit.
+   */
+  synchronized long tryAcquire() {
+    long now = System.currentTimeMillis();
+    switch (state) {
+      case CLOSED:
+        return generation;
+      case OPEN:
+        return now - openedAtMillis < openMillis ? REJECTED : startProbe(now);
+      default:
+        // Only one probe at a time while half open, unless it outlived the timeouts of the client
+        return now - probeStartedAtMillis < probeTimeoutMillis ? REJECTED : startProbe(now);
+    }
+  }
+
+  synchronized void onSuccess(long permit) {
+    if (permit != generation) {
+      return;
+    }
+    if (state == State.HALF_OPEN) {
+      reset();
+      transition(State.CLOSED);
+    } else {
+      record(false);
+    }
+  }
+
+  /**
+   * Records a failed call and returns whether it opened the circuit.
+   */
+  synchronized boolean onFailure(long permit) {
+    if (permit != generation) {
+      return false;
+    }
+    if (state == State.HALF_OPEN) {
+      open();
+      return true;
+    }
+    record(true);
+    if (state == State.CLOSED && calls >= MIN_CALLS && failures * 100.0d >= calls * failureRatePercent) {
+      open();
+      return true;
+    }
+    return false;
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Records nothing for a call that was given up before its outcome was known, such as one that was interrupted. An
+   * abandoned probe is replaced by the next call.
+   */
+  synchronized void onAbandoned(long permit) {
+    if (permit == generation && state == State.HALF_OPEN) {
+      // Opening again with the open time already elapsed lets the next call probe right away
+      transition(State.OPEN);
+      openedAtMillis = System.currentTimeMillis() - openMillis;
+    }
+  }
+
+  /**
+   * Returns whether the failure of a call says the service is unavailable, rather than that the image was bad.
+   */
+  static boolean isServiceFailure(Exception e) {
+    if (e instanceof FaceApiException) {
+      return RetryPolicy.isRetryable(((FaceApiException) e).getStatusCode());
+    }
+    return e instanceof IOException && !isAbandoned(e);
+  }
+
+  /**
+   * Returns whether a call failed because it was interrupted or cancelled, which says nothing about the service.
+   * Timeouts are interruptions too, but they do say the service is slow.
+   */
+  static boolean isAbandoned(Exception e) {
+    if (e instanceof InterruptedIOException) {
+      return !(e instanceof SocketTimeoutException) && !(e instanceof ConnectTimeoutException);
+    }
+    return e instanceof InterruptedException || e instanceof CancellationException;
+  }
+
+  private void record(boolean failure) {
+    if (calls == WINDOW) {
+      failures -= failed[next] ? 1 : 0;
+    } else {
+      calls++;
+    }
+    failed[next] = failure;
+    failures += failure ? 1 : 0;
+    next = (next + 1) % WINDOW;
+  }
+
+  private long startProbe(long now) {
+    transition(State.HALF_OPEN);
+    probeStartedAtMillis = now;
+    return generation;
+  }
+
+  private void open() {
+    transition(State.OPEN);
+    openedAtMillis = System.currentTimeMillis();
+    reset();
+  }
+
+  private void transition(State state) {
+    this.state = state;
+    generation++;
+  }
+
+  private void reset() {
+    calls = 0;
+    next = 0;
+    failures = 0;
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A face returned by the Face API detect call. The field names follow the service's JSON response.
+ */
+final class DetectedFace {
+  private String faceId;
+  private FaceRectangle faceRectangle;
+  private Attributes faceAttributes;
+
+  DetectedFace(@Nullable String faceId, FaceRectangle faceRectangle, @Nullable Attributes faceAttributes) {
+    this.faceId = faceId;
+    this.faceRectangle = faceRectangle;
+    this.faceAttributes = faceAttributes;
+  }
+
+  @Nullable
+  String getFaceId() {
+    return faceId;
+  }
+
+  FaceRectangle getFaceRectangle() {
+    return faceRectangle;
+  }
+
+  @Nullable
+  Attributes getFaceAttributes() {
+    return faceAttributes;
+  }
+
+  /**
+   * The attributes the service estimated for the face. Attributes that were not requested are null.
+   */
+  static final class Attributes {
+    private Double age;
+    private String gender;
+    private Double smile;
+    private FacialHair facialHair;
+    private String glasses;
+    private HeadPose headPose;
+    private Map<String, Double> emotion;
+
+    Attributes(@Nullable Double age, @Nullable String gender, @Nullable Double smile,
+               @Nullable FacialHair facialHair, @Nullable String glasses, @Nullable HeadPose headPose,
+               @Nullable Map<String, Double> emotion) {
+      this.age = age;
+      this.gender = gender;
+      this.smile = smile;
+      this.facialHair = facialHair;
+      this.glasses = glasses;
+      this.headPose = headPose;
+      this.emotion = emotion;
+    }
+
+    @Nullable
+    Double getAge() {
+      return age;
+    }
+
+    @Nullable
+    String getGender() {
+      return gender;
+    }
+
+    @Nullable
+    Double getSmile() {
+      return smile;
+    }
+
+    @Nullable
+    FacialHair getFacialHair() {
+      return facialHair;
+    }
+
+    @Nullable
+    String getGlasses() {
+      return glasses;
+    }
+
+    @Nullable
+    HeadPose getHeadPose() {
+      return headPose;
+    }
+
+    @Nullable
+    Map<String, Double> getEmotion() {
+      return emotion;
+    }
+  }
+
+  /**
+   * Facial hair confidences.
+   */
+  static final class FacialHair {
+    private Double moustache;
+    private Double beard;
+    private Double sideburns;
+
+    FacialHair(@Nullable Double moustache, @Nullable Double beard, @Nullable Double sideburns) {
+      this.moustache = moustache;
+      this.beard = beard;
+      this.sideburns = sideburns;
+    }
+
+    @Nullable
+    Double getMoustache() {
+      return moustache;
+    }
+
+    @Nullable
+    Double getBeard() {
+      return beard;
+    }
+
+    @Nullable
+    Double getSideburns() {
+      return sideburns;
+    }
+  }
+
+  /**
+   * The orientation of the head, in degrees.
+   */
+  static final class HeadPose {
+    private Double roll;
+    private Double yaw;
+    private Double pitch;
+
+    HeadPose(@Nullable Double roll, @Nullable Double yaw, @Nullable Double pitch) {
+      this.roll = roll;
+      this.yaw = yaw;
+      this.pitch = pitch;
+    }
+
+    @Nullable
+    Double getRoll() {
+      return roll;
+    }
+
+    @Nullable
+    Double getYaw() {
+      return yaw;
+    }
+
+    @Nullable
+    Double getPitch() {
+      return pitch;
+    }
+  }
+}
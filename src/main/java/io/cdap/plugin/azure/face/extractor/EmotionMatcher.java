@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.azure.face.extractor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Pairs the faces of an image with the Emotion API results for the same image, by the overlap of their rectangles.
+ *
+ * The two services locate a face independently and may disagree by a few pixels, so a face is paired with the
+ * unused emotion result whose rectangle has the highest intersection over union (IoU) with its own, provided it
+ * reaches the threshold. To keep crowded images linear, the emotion rectangles are bucketed once into a grid by their
+ * centers, with cells as large as the largest rectangle. Two rectangles can only overlap if their centers are less
+ * than a cell apart per face size, so each face only looks at the cells around its own center.
+ *
+ * Instances are not thread safe and hold the pairing state of a single image.
+ */
+final class EmotionMatcher {
+  private final List<EmotionResult> emotions;
+  private final double minIoU;
+  private final int cellSize;
+  private final Map<Long, List<Integer>> grid;
+  private final boolean[] matched;
+
+  EmotionMatcher(List<EmotionResult> emotions, double minIoU) {
+    this.emotions = emotions;
+    this.minIoU = minIoU;
+    this.matched = new boolean[emotions.size()];
+    int maxEdge = 1;
+    for (EmotionResult emotion : emotions) {
+      FaceRectangle rectangle = emotion.getFaceRectangle();
+      maxEdge = Math.max(maxEdge, Math.max(rectangle.getWidth(), rectangle.getHeight()));
+    }
+    this.cellSize = maxEdge;
+    this.grid = new HashMap<>();
+    for (int i = 0; i < emotions.size(); i++) {
+      FaceRectangle rectangle = emotions.get(i).getFaceRectangle();
+      grid.computeIfAbsent(cellKey(cell(centerX(rectangle)), cell(centerY(rectangle))), key -> new ArrayList<>())
+        .add(i);
+    }
+  }
+
+  /**
+   * Returns the best matching emotion result for the given face rectangle that has not been matched yet, or null if
+   * none overlaps it enough.
+   */
+  @Nullable
+  EmotionResult match(FaceRectangle face) {
+    int cellX = cell(centerX(face));
+    int cellY = cell(centerY(face));
+    // Rectangles overlap only if their centers are less than half of both their sizes apart
+    int radius = (Math.max(face.getWidth(), face.getHeight()) / 2 + cellSize / 2) / cellSize + 1;
+    int best = -1;
+    double bestIoU = minIoU;
+    for (int x = cellX - radius; x <= cellX + radius; x++) {
+      for (int y = cellY - radius; y <= cellY + radius; y++) {
+        List<Integer> candidates = grid.get(cellKey(x, y));
+        if (candidates == null) {
+          continue;
+        }
+        for (int candidate : candidates) {
+          if (matched[candidate]) {
+            continue;
+          }
+          double iou = intersectionOverUnion(face, emotions.get(candidate).getFaceRectangle());
+          if (iou >= bestIoU && (best < 0 || iou > bestIoU)) {
+            best = candidate;
+            bestIoU = iou;
+          }
+        }
+      }
+    }
+    if (best < 0) {
+      return null;
+    }
+    matched[best] = true;
+    return emotions.get(best);
+  }
+
+  static double intersectionOverUnion(FaceRectangle a, FaceRectangle b) {
+    long width = Math.min(a.getLeft() + a.getWidth(), b.getLeft() + b.getWidth()) - Math.max(a.getLeft(), b.getLeft());
+    long height = Math.min(a.getTop() + a.getHeight(), b.getTop() + b.getHeight()) - Math.max(a.getTop(), b.getTop());
+    if (width <= 0 || height <= 0) {
+      return 0.0d;
+    }
+    long intersection = width * height;
+    long union = (long) a.getWidth() * a.getHeight() + (long) b.getWidth() * b.getHeight() - intersection;
+    return union <= 0 ? 0.0d : (double) intersection / union;
+  }
+
+  private int cell(int coordinate) {
+    return Math.floorDiv(coordinate, cellSize);
+  }
+
+  private static int centerX(FaceRectangle rectangle) {
+    return rectangle.getLeft() + rectangle.getWidth() / 2;
+  }
+
+  private static int centerY(FaceRectangle rectangle) {
+    return rectangle.getTop() + rectangle.getHeight() / 2;
+  }
+
+  private static long cellKey(int x, int y) {
+    return ((long) x << 32) | (y & 0xFFFFFFFFL);
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A face returned by the Emotion API recognize call, with the confidence of each emotion keyed by its name.
+ */
+final class EmotionResult {
+  private FaceRectangle faceRectangle;
+  private Map<String, Double> scores;
+
+  EmotionResult(FaceRectangle faceRectangle, @Nullable Map<String, Double> scores) {
+    this.faceRectangle = faceRectangle;
+    this.scores = scores;
+  }
+
+  FaceRectangle getFaceRectangle() {
+    return faceRectangle;
+  }
+
+  @Nullable
+  Map<String, Double> getScores() {
+    return scores;
+  }
+}
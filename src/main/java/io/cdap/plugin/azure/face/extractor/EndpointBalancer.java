@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/**
+ * Spreads the calls to one service over several endpoint and subscription key pairs, so throughput is not capped by
+ * the limit of a single key.
+ *
+ * Each call goes to the healthy endpoint with the fewest outstanding calls, ties taking turns. An endpoint that is
+ * throttled or fails is ejected for the time Azure asked for, or for a delay that doubles with each consecutive
+ * failure, and gets calls again once the ejection ends or a call to it succeeds. If every endpoint is ejected, calls
+ * go to the one that recovers first. A lone endpoint is never ejected, as no other endpoint could take its calls.
+ */
+final class EndpointBalancer {
+  private static final long MIN_EJECTION_MILLIS = 1000;
+  private static final long MAX_EJECTION_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  private final List<Endpoint> endpoints;
+  private final AtomicInteger turn = new AtomicInteger();
+
+  EndpointBalancer(List<Endpoint> endpoints) {
+    if (endpoints.isEmpty()) {
+      throw new IllegalArgumentException("At least one endpoint is required.");
+    }
+    this.endpoints = new ArrayList<>(endpoints);
+  }
+
+  /**
+   * Picks the endpoint for the next call and counts the call as outstanding until it is {@link #release released}.
+   */
+  Endpoint acquire() {
+    long now = System.currentTimeMillis();
+    int start = Math.floorMod(turn.getAndIncrement(), endpoints.size());
+    Endpoint best = null;
+    for (int i = 0; i < endpoints.size(); i++) {
+      Endpoint endpoint = endpoints.get((start + i) % endpoints.size());
+      if (best == null || isBetter(endpoint, best, now)) {
+        best = endpoint;
+      }
+    }
+    best.outstanding.incrementAndGet();
+    return best;
+  }
+
+  void release(Endpoint endpoint) {
+    endpoint.outstanding.decrementAndGet();
+  }
+
+  void onSuccess(Endpoint endpoint) {
+    synchronized (endpoint) {
+      endpoint.consecutiveFailures = 0;
+      endpoint.ejectedUntilMillis = 0;
+    }
+  }
+
+  /**
+   * Ejects the endpoint after a failed call, for the given delay if Azure asked for one, and returns whether it was
+   * ejected. It is not if it is the only endpoint.
+   */
+  boolean onFailure(Endpoint endpoint, @Nullable Long retryAfterMillis) {
+    if (endpoints.size() < 2) {
+      return false;
+    }
+    synchronized (endpoint) {
+      endpoint.consecutiveFailures++;
+      long ejectionMillis = retryAfterMillis != null
+        ? retryAfterMillis
+        : Math.min(MAX_EJECTION_MILLIS, MIN_EJECTION_MILLIS << Math.min(endpoint.consecutiveFailures - 1, 30));
+      endpoint.ejectedUntilMillis = System.currentTimeMillis() + ejectionMillis;
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether a retry can go right away to an endpoint that is not ejected and that the call did not try yet. A
+   * lone endpoint is always tried by the first request, so its retries have to wait instead.
+   */
+  boolean canFailOver(Collection<Endpoint> tried) {
+    long now = System.currentTimeMillis();
+    for (Endpoint endpoint : endpoints) {
+      if (!endpoint.isEjected(now) && !tried.contains(endpoint)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isBetter(Endpoint candidate, Endpoint best, long now) {
+    boolean candidateEjected = candidate.isEjected(now);
+    boolean bestEjected = best.isEjected(now);
+    if (candidateEjected != bestEjected) {
+      return !candidateEjected;
+    }
+    if (candidateEjected) {
+      return candidate.ejectedUntilMillis < best.ejectedUntilMillis;
+    }
+    return candidate.outstanding.get() < best.outstanding.get();
+  }
+
+  /**
+   * A service endpoint together with the subscription key to call it with.
+   */
+  static final class Endpoint {
+    private final URI uri;
+    private final String subscriptionKey;
+    private final SubscriptionRateLimiter rateLimiter;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile long ejectedUntilMillis;
+    private int consecutiveFailures;
+
+    Endpoint(URI uri, @Nullable String subscriptionKey, @Nullable SubscriptionRateLimiter rateLimiter) {
+      this.uri = uri;
+      this.subscriptionKey = subscriptionKey;
+      this.rateLimiter = rateLimiter;
+    }
+
+    URI getUri() {
+      return uri;
+    }
+
+    @Nullable
+    String getSubscriptionKey() {
+      return subscriptionKey;
+    }
+
+    @Nullable
+    SubscriptionRateLimiter getRateLimiter() {
+      return rateLimiter;
+    }
+
+    private boolean isEjected(long now) {
+      return ejectedUntilMillis > now;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * The faces and emotions the Azure services returned for a single image.
+ */
+final class FaceAnalysis {
+  private final List<DetectedFace> faces;
+  private final List<EmotionResult> emotions;
+
+  FaceAnalysis(@Nullable List<DetectedFace> faces, @Nullable List<EmotionResult> emotions) {
+    this.faces = faces;
+    this.emotions = emotions;
+  }
+
+  @Nullable
+  List<DetectedFace> getFaces() {
+    return faces;
+  }
+
+  @Nullable
+  List<EmotionResult> getEmotions() {
+    return emotions;
+  }
+
+  /**
+   * Multiplies the coordinates of every face and emotion rectangle by the given factor, for an analysis of a resized
+   * copy of the image. Faces and emotions are rounded the same way so they still match up.
+   */
+  void rescale(double factor) {
+    if (faces != null) {
+      for (DetectedFace face : faces) {
+        face.getFaceRectangle().scale(factor);
+      }
+    }
+    if (emotions != null) {
+      for (EmotionResult emotion : emotions) {
+        emotion.getFaceRectangle().scale(factor);
+      }
+    }
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gson.Gson;
+import io.cdap.cdap.etl.api.StageMetrics;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Caches {@link FaceAnalysis} results by a hash of the image bytes, so images that are delivered more than once are
+ * only sent to Azure once. Entries are evicted least recently used first once the cache is full, and after they have
+ * been in the cache for the configured time to live. When a spill directory is given, entries evicted for size are
+ * written to a temporary directory under it and read back on a later miss. The time to live always counts from when the
+ * image was analyzed, however often its entry was spilled and read back. The temporary directory is deleted when the
+ * cache is closed.
+ */
+final class FaceAnalysisCache implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(FaceAnalysisCache.class);
+  private static final Gson GSON = new Gson();
+
+  private final Cache<String, Entry> cache;
+  private final long ttlMillis;
+  private final File spillDirectory;
+  private final StageMetrics metrics;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  FaceAnalysisCache(long maximumSize, long ttlSeconds, @Nullable File spillParent,
+                    @Nullable StageMetrics metrics) throws IOException {
+    this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+    this.spillDirectory = spillParent == null
+      ? null
+      : Files.createTempDirectory(Files.createDirectories(spillParent.toPath()), "azure-face-cache").toFile();
+    this.metrics = metrics;
+    this.cache = CacheBuilder.newBuilder()
+      .maximumSize(maximumSize)
+      .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+      .<String, Entry>removalListener(this::onRemoval)
+      .build();
+  }
+
+  /**
+   * Returns the cached analysis of the image with the given {@link ImageData#hash content hash}, calling the loader
+   * if it is not cached. Concurrent lookups of the same image wait for a single load.
+   */
+  FaceAnalysis get(String key, Callable<FaceAnalysis> loader) throws Exception {
+    boolean[] loaded = new boolean[1];
+    Entry entry;
+    try {
+      do {
+        entry = cache.get(key, () -> {
+          Entry spilled = readSpilled(key);
+          if (spilled != null) {
+            return spilled;
+          }
+          loaded[0] = true;
+          return new Entry(loader.call());
+        });
+      } while (!loaded[0] && evictIfExpired(key, entry));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+    if (loaded[0]) {
+      misses.incrementAndGet();
+      count("cache.misses");
+    } else {
+      hits.incrementAndGet();
+      count("cache.hits");
+    }
+    return entry.analysis;
+  }
+
+  /**
+   * Returns the cached analysis of the image with the given content hash, or {@code null} if it is not cached. A miss
+   * is only counted once the analysis is {@link #put}.
+   */
+  @Nullable
+  FaceAnalysis getIfPresent(String key) {
+    Entry entry = cache.getIfPresent(key);
+    if (entry != null && evictIfExpired(key, entry)) {
+      entry = null;
+    }
+    if (entry == null) {
+      entry = readSpilled(key);
+      if (entry == null) {
+        return null;
+      }
+      cache.put(key, entry);
+    }
+    hits.incrementAndGet();
+    count("cache.hits");
+    return entry.analysis;
+  }
+
+  /**
+   * Caches the analysis of an image that was not found with {@link #getIfPresent}.
+   */
+  void put(String key, FaceAnalysis analysis) {
+    cache.put(key, new Entry(analysis));
+    misses.incrementAndGet();
+    count("cache.misses");
+  }
+
+  long getHitCount() {
+    return hits.get();
+  }
+
+  long getMissCount() {
+    return misses.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (spillDirectory != null) {
+      FileUtils.deleteDirectory(spillDirectory);
+    }
+  }
+
+  private void count(String metric) {
+    if (metrics != null) {
+      metrics.count(metric, 1);
+    }
+  }
+
+  /**
+   * Removes an entry that was read back from the spill directory and has outlived the time to live since then. The
+   * cache itself only counts the time to live from when the entry was read back.
+   */
+  private boolean evictIfExpired(String key, Entry entry) {
+    if (!isExpired(entry)) {
+      return false;
+    }
+    cache.asMap().remove(key, entry);
+    return true;
+  }
+
+  private boolean isExpired(Entry entry) {
+    return System.currentTimeMillis() - entry.createdMillis > ttlMillis;
+  }
+
+  private void onRemoval(RemovalNotification<String, Entry> notification) {
+    if (spillDirectory == null || notification.getCause() != RemovalCause.SIZE) {
+      return;
+    }
+    File file = new File(spillDirectory, notification.getKey());
+    try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      GSON.toJson(notification.getValue(), writer);
+    } catch (IOException e) {
+      LOG.warn("Failed to spill the cached analysis of image '{}' to '{}'.", notification.getKey(), file, e);
+      file.delete();
+    }
+  }
+
+  @Nullable
+  private Entry readSpilled(String key) {
+    if (spillDirectory == null) {
+      return null;
+    }
+    File file = new File(spillDirectory, key);
+    if (!file.isFile()) {
+      return null;
+    }
+    // The entry is read back into memory, so the file is no longer needed either way.
+    try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      Entry entry = GSON.fromJson(reader, Entry.class);
+      return entry == null || isExpired(entry) ? null : entry;
+    } catch (IOException e) {
+      LOG.warn("Failed to read the spilled analysis of image '{}' from '{}'.", key, file, e);
+      return null;
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * A cached analysis and the time the image was analyzed, which is spilled with it.
+   */
+  private static final class Entry {
+    private final FaceAnalysis analysis;
+    private final long createdMillis;
+
+    private Entry(FaceAnalysis analysis) {
+      this.analysis = analysis;
+      this.createdMillis = System.currentTimeMillis();
+    }
+  }
+}
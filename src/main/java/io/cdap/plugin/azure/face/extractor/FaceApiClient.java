@@ -0,0 +1,642 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.FaceAttribute;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * A minimal client for the Azure Face and Emotion APIs. Calls that are throttled, fail with a server error or fail
+ * without a response are retried according to a {@link RetryPolicy}, and may be rate limited per subscription key.
+ * Calls may be spread over several endpoint and key pairs by an {@link EndpointBalancer}, and calls that take unusually
+ * long may be hedged with a duplicate request as a {@link RequestHedger} decides. Connections are pooled and kept alive
+ * between calls, so the TLS handshake is only paid once per connection, and responses are decoded by
+ * {@link FaceApiResponseParser} as they are read.
+ */
+final class FaceApiClient implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(FaceApiClient.class);
+
+  static final String DEFAULT_FACE_ENDPOINT = "https://westus.api.cognitive.microsoft.com/face/v1.0";
+  static final String DEFAULT_EMOTION_ENDPOINT = "https://westus.api.cognitive.microsoft.com/emotion/v1.0";
+  static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+  static final int DEFAULT_READ_TIMEOUT_MILLIS = 60000;
+
+  private static final String SUBSCRIPTION_KEY_HEADER = "Ocp-Apim-Subscription-Key";
+  // Azure drops connections that stay idle for a few minutes, so they are not kept much longer than a minute
+  private static final long DEFAULT_KEEP_ALIVE_MILLIS = TimeUnit.SECONDS.toMillis(60);
+  private static final long MAX_IDLE_SECONDS = 60;
+  private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+  private final CloseableHttpClient httpClient;
+  private final EndpointBalancer faceEndpoints;
+  private final EndpointBalancer emotionEndpoints;
+  private final RetryPolicy retryPolicy;
+  private final FaceMetrics metrics;
+  private final RequestHedger faceHedger;
+  private final RequestHedger emotionHedger;
+  private final ExecutorService hedgeExecutor;
+
+  private FaceApiClient(Builder builder) {
+    this.retryPolicy = builder.retryPolicy;
+    this.metrics = builder.metrics;
+    int maxConnections = builder.maxConcurrentCalls;
+    if (builder.hedgePercentile == null) {
+      this.faceHedger = null;
+      this.emotionHedger = null;
+      this.hedgeExecutor = null;
+    } else {
+      // Latencies differ between the services, so each gets its own hedge delay
+      this.faceHedger = new RequestHedger(builder.hedgePercentile, builder.hedgeMaxExtraPercent);
+      this.emotionHedger = new RequestHedger(builder.hedgePercentile, builder.hedgeMaxExtraPercent);
+      this.hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                                                           .setNameFormat("azure-face-hedge-%d")
+                                                           .setDaemon(true)
+                                                           .build());
+      // A hedge must not wait for a connection behind the request it is meant to overtake
+      maxConnections *= 2;
+    }
+    List<EndpointBalancer.Endpoint> face = new ArrayList<>();
+    for (Account account : builder.faceAccounts) {
+      face.add(new EndpointBalancer.Endpoint(buildDetectUri(account.endpoint, builder.faceAttributes), account.key,
+                                             getRateLimiter(account.key, builder.requestsPerSecond)));
+    }
+    List<EndpointBalancer.Endpoint> emotion = new ArrayList<>();
+    for (Account account : builder.emotionAccounts) {
+      emotion.add(new EndpointBalancer.Endpoint(build(buildUri(account.endpoint, "recognize")), account.key,
+                                                getRateLimiter(account.key, builder.requestsPerSecond)));
+    }
+    this.faceEndpoints = new EndpointBalancer(face);
+    this.emotionEndpoints = new EndpointBalancer(emotion);
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    // Connections that sat in the pool for a while are checked before they are reused, so a request is not sent over
+    // a connection the server already closed
+    connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+    RequestConfig requestConfig = RequestConfig.custom()
+      .setConnectTimeout(builder.connectTimeoutMillis)
+      .setSocketTimeout(builder.readTimeoutMillis)
+      // A pooled connection is handed back at the latest once the call holding it timed out
+      .setConnectionRequestTimeout(builder.readTimeoutMillis)
+      .build();
+    this.httpClient = HttpClients.custom()
+      .setConnectionManager(connectionManager)
+      .setDefaultRequestConfig(requestConfig)
+      .setKeepAliveStrategy(FaceApiClient::getKeepAliveMillis)
+      .evictIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS)
+      .disableCookieManagement()
+      .disableAuthCaching()
+      .build();
+  }
+
+  static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns the hedger of the calls to the Face API, or null if calls are not hedged.
+   */
+  @VisibleForTesting
+  @Nullable
+  RequestHedger getFaceHedger() {
+    return faceHedger;
+  }
+
+  /**
+   * Detects the faces in the given image, with the face attributes the client was built with.
+   */
+  List<DetectedFace> detect(ImageData imageData) throws IOException {
+    return post(FaceMetrics.DETECT, faceEndpoints, faceHedger, imageData, FaceApiResponseParser::readFaces);
+  }
+
+  /**
+   * Recognizes the emotions of the faces in the given image.
+   */
+  List<EmotionResult> recognizeEmotions(ImageData imageData) throws IOException {
+    return post(FaceMetrics.EMOTION, emotionEndpoints, emotionHedger, imageData, FaceApiResponseParser::readEmotions);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (hedgeExecutor != null) {
+      hedgeExecutor.shutdownNow();
+    }
+    httpClient.close();
+  }
+
+  private <T> List<T> post(String call, EndpointBalancer balancer, @Nullable RequestHedger hedger,
+                           ImageData imageData, ResponseReader<T> responseReader) throws IOException {
+    // The endpoints the requests of this call went to, including hedges
+    Set<EndpointBalancer.Endpoint> tried = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    int backoffs = 0;
+    for (int retry = 1; ; retry++) {
+      try {
+        return hedger == null
+          ? new Attempt<>(call, balancer, null, tried, imageData, responseReader).call()
+          : hedge(call, balancer, hedger, tried, imageData, responseReader);
+      } catch (IOException e) {
+        if (!RetryPolicy.isRetryable(e) || retry > retryPolicy.getMaxRetries()) {
+          throw e;
+        }
+        metrics.recordRetry(call);
+        // A healthy endpoint the call has not tried yet can take the retry right away. Once every endpoint was tried,
+        // retries wait as the retry policy says, so a service that fails everywhere is not called in a tight loop.
+        if (!balancer.canFailOver(tried)) {
+          backoffs++;
+          Long retryAfterMillis = e instanceof FaceApiException ? ((FaceApiException) e).getRetryAfterMillis() : null;
+          long delayMillis = retryPolicy.getDelayMillis(backoffs, retryAfterMillis);
+          LOG.debug("Retrying {} call in {} ms after: {}", call, delayMillis, e.getMessage());
+          sleep(delayMillis);
+        }
+      }
+    }
+  }
+
+  /**
+   * Makes a call, and sends a duplicate request if it has not returned within the hedge delay. The first successful
+   * response is used and the other request is aborted. The call only fails once both requests failed.
+   */
+  private <T> List<T> hedge(String call, EndpointBalancer balancer, RequestHedger hedger,
+                            Set<EndpointBalancer.Endpoint> tried, ImageData imageData,
+                            ResponseReader<T> responseReader) throws IOException {
+    hedger.onCall();
+    long delayMillis = hedger.getDelayMillis();
+    CompletionService<List<T>> completionService = new ExecutorCompletionService<>(hedgeExecutor);
+    Attempt<T> primary = new Attempt<>(call, balancer, hedger, tried, imageData, responseReader);
+    Future<List<T>> primaryFuture = completionService.submit(primary);
+    Attempt<T> hedge = null;
+    Future<List<T>> hedgeFuture = null;
+    int pending = 1;
+    IOException failure = null;
+    try {
+      while (pending > 0) {
+        Future<List<T>> done = delayMillis >= 0
+          ? completionService.poll(delayMillis, TimeUnit.MILLISECONDS)
+          : completionService.take();
+        if (done == null) {
+          delayMillis = -1;
+          if (hedger.tryHedge()) {
+            // The balancer sends the hedge to another endpoint if there is one, as the first request is outstanding
+            hedge = new Attempt<>(call, balancer, hedger, tried, imageData, responseReader);
+            hedgeFuture = completionService.submit(hedge);
+            pending++;
+            metrics.recordHedge(call);
+          }
+          continue;
+        }
+        pending--;
+        try {
+          List<T> results = done.get();
+          if (done == hedgeFuture) {
+            metrics.recordHedgeWin(call);
+          }
+          return results;
+        } catch (ExecutionException e) {
+          IOException cause = toIOException(e.getCause());
+          if (failure == null) {
+            failure = cause;
+          } else {
+            failure.addSuppressed(cause);
+          }
+        }
+      }
+      throw failure;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting for a response.");
+      interrupted.initCause(e);
+      throw interrupted;
+    } finally {
+      if (!primaryFuture.isDone()) {
+        primary.abort();
+      }
+      if (hedgeFuture != null && !hedgeFuture.isDone()) {
+        hedge.abort();
+      }
+    }
+  }
+
+  private static IOException toIOException(Throwable cause) {
+    if (cause instanceof IOException) {
+      return (IOException) cause;
+    }
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new IOException(cause);
+  }
+
+  @Nullable
+  private static SubscriptionRateLimiter getRateLimiter(@Nullable String subscriptionKey,
+                                                        @Nullable Double requestsPerSecond) {
+    return requestsPerSecond == null || subscriptionKey == null
+      ? null : SubscriptionRateLimiter.forKey(subscriptionKey, requestsPerSecond);
+  }
+
+  private <T> List<T> execute(String call, HttpPost request, ImageData imageData,
+                              ResponseReader<T> responseReader) throws IOException {
+    URI uri = request.getURI();
+    request.setEntity(imageData.toEntity());
+    long bytesUploaded = imageData.getLength();
+    long start = System.nanoTime();
+    try (CloseableHttpResponse response = httpClient.execute(request)) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      HttpEntity entity = response.getEntity();
+      boolean success = statusCode / 100 == 2;
+      String errorBody = null;
+      List<T> results = Collections.emptyList();
+      if (!success) {
+        errorBody = entity == null ? "" : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+      } else if (entity != null && entity.getContentLength() != 0) {
+        results = read(uri, entity, responseReader);
+      }
+      metrics.recordCall(call, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), bytesUploaded, statusCode);
+      if (!success) {
+        throw new FaceApiException(statusCode, getErrorMessage(errorBody), getRetryAfterMillis(response));
+      }
+      return results;
+    } catch (FaceApiException e) {
+      throw e;
+    } catch (IOException e) {
+      // Timeouts, refused or reset connections and responses cut off while they were read
+      metrics.recordFailedCall(call, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), bytesUploaded, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Decodes the response while it is read from the connection. Closing the stream hands the connection back to the
+   * pool.
+   */
+  private static <T> List<T> read(URI uri, HttpEntity entity, ResponseReader<T> responseReader) throws IOException {
+    try (JsonReader reader = new JsonReader(new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8))) {
+      return responseReader.read(reader);
+    } catch (IllegalStateException | NumberFormatException e) {
+      throw new IOException(String.format("Unexpected response from %s: %s", uri.getPath(), e.getMessage()), e);
+    }
+  }
+
+  /**
+   * Keeps connections alive for as long as the server allows, or a minute if it does not say.
+   */
+  private static long getKeepAliveMillis(HttpResponse response, HttpContext context) {
+    long keepAliveMillis = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+    return keepAliveMillis > 0 ? keepAliveMillis : DEFAULT_KEEP_ALIVE_MILLIS;
+  }
+
+  /**
+   * Returns the delay requested by a Retry-After header, which holds either a number of seconds or an HTTP date.
+   */
+  @Nullable
+  private static Long getRetryAfterMillis(HttpResponse response) {
+    Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+    if (header == null) {
+      return null;
+    }
+    String value = header.getValue().trim();
+    try {
+      return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(value);
+      return date == null ? null : Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+  }
+
+  private static void sleep(long millis) throws InterruptedIOException {
+    try {
+      TimeUnit.MILLISECONDS.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting to retry.");
+      interrupted.initCause(e);
+      throw interrupted;
+    }
+  }
+
+  /**
+   * Returns the message of an error response, which looks like {"error": {"code": "...", "message": "..."}}.
+   */
+  private static String getErrorMessage(String body) {
+    try {
+      JsonElement json = new JsonParser().parse(body);
+      if (json.isJsonObject() && json.getAsJsonObject().has("error")) {
+        JsonObject error = json.getAsJsonObject().getAsJsonObject("error");
+        if (error.has("message")) {
+          return error.get("message").getAsString();
+        }
+      }
+    } catch (JsonParseException | IllegalStateException e) {
+      // Not a JSON error response, the body itself is the most useful message
+    }
+    return body;
+  }
+
+  /**
+   * Builds the URI of the detect call, which only asks for the given attributes. Leaving out attributes makes both
+   * the request and the response smaller.
+   */
+  private static URI buildDetectUri(String faceEndpoint, Set<FaceAttribute> faceAttributes) {
+    URIBuilder builder = buildUri(faceEndpoint, "detect")
+      .addParameter("returnFaceId", Boolean.toString(faceAttributes.contains(FaceAttribute.FACE_ID)))
+      .addParameter("returnFaceLandmarks", "false");
+    Set<FaceAttribute> returnFaceAttributes = EnumSet.noneOf(FaceAttribute.class);
+    returnFaceAttributes.addAll(faceAttributes);
+    returnFaceAttributes.remove(FaceAttribute.FACE_ID);
+    if (!returnFaceAttributes.isEmpty()) {
+      builder.addParameter("returnFaceAttributes", Joiner.on(',').join(returnFaceAttributes));
+    }
+    return build(builder);
+  }
+
+  private static URIBuilder buildUri(String endpoint, String operation) {
+    String base = endpoint.endsWith("/") ? endpoint : endpoint + "/";
+    try {
+      return new URIBuilder(base + operation);
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException(String.format("Invalid endpoint '%s'.", endpoint), e);
+    }
+  }
+
+  private static URI build(URIBuilder builder) {
+    try {
+      return builder.build();
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * One request of a call, sent to the endpoint the balancer picks. A request that is aborted because another request
+   * of the same call won does not count against its endpoint.
+   */
+  private final class Attempt<T> implements Callable<List<T>> {
+    private final String call;
+    private final EndpointBalancer balancer;
+    private final RequestHedger hedger;
+    private final Set<EndpointBalancer.Endpoint> tried;
+    private final ImageData imageData;
+    private final ResponseReader<T> responseReader;
+    private HttpPost request;
+    private boolean aborted;
+
+    Attempt(String call, EndpointBalancer balancer, @Nullable RequestHedger hedger,
+            Set<EndpointBalancer.Endpoint> tried, ImageData imageData, ResponseReader<T> responseReader) {
+      this.call = call;
+      this.balancer = balancer;
+      this.hedger = hedger;
+      this.tried = tried;
+      this.imageData = imageData;
+      this.responseReader = responseReader;
+    }
+
+    @Override
+    public List<T> call() throws IOException {
+      EndpointBalancer.Endpoint endpoint = balancer.acquire();
+      tried.add(endpoint);
+      SubscriptionRateLimiter rateLimiter = endpoint.getRateLimiter();
+      try {
+        if (rateLimiter != null) {
+          rateLimiter.acquire();
+        }
+        long start = System.nanoTime();
+        List<T> results = execute(call, createRequest(endpoint), imageData, responseReader);
+        if (hedger != null) {
+          hedger.onSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        if (rateLimiter != null) {
+          rateLimiter.onSuccess();
+        }
+        balancer.onSuccess(endpoint);
+        return results;
+      } catch (FaceApiException e) {
+        if (rateLimiter != null && RetryPolicy.isThrottled(e.getStatusCode())) {
+          rateLimiter.onThrottled();
+        }
+        if (RetryPolicy.isRetryable(e.getStatusCode()) && balancer.onFailure(endpoint, e.getRetryAfterMillis())) {
+          metrics.recordEjection(call);
+        }
+        throw e;
+      } catch (IOException e) {
+        if (!isAborted() && balancer.onFailure(endpoint, null)) {
+          metrics.recordEjection(call);
+        }
+        throw e;
+      } finally {
+        balancer.release(endpoint);
+      }
+    }
+
+    synchronized void abort() {
+      aborted = true;
+      if (request != null) {
+        request.abort();
+      }
+    }
+
+    private synchronized boolean isAborted() {
+      return aborted;
+    }
+
+    private synchronized HttpPost createRequest(EndpointBalancer.Endpoint endpoint) {
+      request = new HttpPost(endpoint.getUri());
+      request.setHeader(SUBSCRIPTION_KEY_HEADER, endpoint.getSubscriptionKey());
+      if (aborted) {
+        request.abort();
+      }
+      return request;
+    }
+  }
+
+  /**
+   * Decodes the results of a call from its JSON response.
+   */
+  private interface ResponseReader<T> {
+    List<T> read(JsonReader reader) throws IOException;
+  }
+
+  /**
+   * Builder for {@link FaceApiClient}.
+   */
+  static final class Builder {
+    private final List<Account> faceAccounts = new ArrayList<>();
+    private final List<Account> emotionAccounts = new ArrayList<>();
+    private Set<FaceAttribute> faceAttributes = EnumSet.complementOf(EnumSet.of(FaceAttribute.EMOTION));
+    private int maxConcurrentCalls = 2;
+    private RetryPolicy retryPolicy = new RetryPolicy(0, 1, 1);
+    private Double requestsPerSecond;
+    private Double hedgePercentile;
+    private double hedgeMaxExtraPercent;
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+    private FaceMetrics metrics = new FaceMetrics(null);
+
+    private Builder() {
+      faceAccounts.add(new Account(DEFAULT_FACE_ENDPOINT, null));
+      emotionAccounts.add(new Account(DEFAULT_EMOTION_ENDPOINT, null));
+    }
+
+    /**
+     * Sets the endpoint of the Face API and the key to call it with, replacing any endpoints that were set before.
+     */
+    Builder setFaceEndpoint(String faceEndpoint, String faceKey) {
+      faceAccounts.clear();
+      return addFaceEndpoint(faceEndpoint, faceKey);
+    }
+
+    /**
+     * Adds an endpoint and key that calls to the Face API are spread over.
+     */
+    Builder addFaceEndpoint(String faceEndpoint, String faceKey) {
+      faceAccounts.add(new Account(faceEndpoint, faceKey));
+      return this;
+    }
+
+    /**
+     * Sets the endpoint of the Emotion API and the key to call it with, replacing any endpoints that were set before.
+     */
+    Builder setEmotionEndpoint(String emotionEndpoint, @Nullable String emotionKey) {
+      emotionAccounts.clear();
+      return addEmotionEndpoint(emotionEndpoint, emotionKey);
+    }
+
+    /**
+     * Adds an endpoint and key that calls to the Emotion API are spread over.
+     */
+    Builder addEmotionEndpoint(String emotionEndpoint, @Nullable String emotionKey) {
+      emotionAccounts.add(new Account(emotionEndpoint, emotionKey));
+      return this;
+    }
+
+    /**
+     * Sets the attributes requested with each detect call. Emotion is only included if it is in the set.
+     */
+    Builder setFaceAttributes(Set<FaceAttribute> faceAttributes) {
+      this.faceAttributes = faceAttributes;
+      return this;
+    }
+
+    Builder setMaxConcurrentCalls(int maxConcurrentCalls) {
+      this.maxConcurrentCalls = maxConcurrentCalls;
+      return this;
+    }
+
+    Builder setRetryPolicy(RetryPolicy retryPolicy) {
+      this.retryPolicy = retryPolicy;
+      return this;
+    }
+
+    /**
+     * Limits the requests sent with each subscription key to the given number per second, or not at all if null.
+     */
+    Builder setRequestsPerSecond(@Nullable Double requestsPerSecond) {
+      this.requestsPerSecond = requestsPerSecond;
+      return this;
+    }
+
+    /**
+     * Hedges calls that have not returned within the given percentile of the recent latencies, as long as the hedges
+     * stay within the given percentage of the calls made. Calls are not hedged if the percentile is null.
+     */
+    Builder setHedging(@Nullable Double hedgePercentile, double hedgeMaxExtraPercent) {
+      this.hedgePercentile = hedgePercentile;
+      this.hedgeMaxExtraPercent = hedgeMaxExtraPercent;
+      return this;
+    }
+
+    /**
+     * Sets how long a call may wait to connect to an endpoint, and how long it may wait for data once connected. The
+     * read timeout also bounds the wait for a pooled connection.
+     */
+    Builder setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+      this.connectTimeoutMillis = connectTimeoutMillis;
+      this.readTimeoutMillis = readTimeoutMillis;
+      return this;
+    }
+
+    Builder setMetrics(FaceMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    FaceApiClient build() {
+      return new FaceApiClient(this);
+    }
+  }
+
+  /**
+   * An endpoint and the subscription key to call it with.
+   */
+  private static final class Account {
+    private final String endpoint;
+    private final String key;
+
+    private Account(String endpoint, @Nullable String key) {
+      this.endpoint = endpoint;
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+/**
+ * Thrown when a Face or Emotion API call returns an unsuccessful HTTP status.
+ */
+final class FaceApiException extends IOException {
+  private final int statusCode;
+  private final Long retryAfterMillis;
+
+  FaceApiException(int statusCode, String message) {
+    this(statusCode, message, null);
+  }
+
+  FaceApiException(int statusCode, String message, @Nullable Long retryAfterMillis) {
+    super(String.format("Azure service returned status %d: %s", statusCode, message));
+    this.statusCode = statusCode;
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  int getStatusCode() {
+    return statusCode;
+  }
+
+  /**
+   * Returns the delay the service asked for with a Retry-After header, if any.
+   */
+  @Nullable
+  Long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Decodes the responses of the Face and Emotion APIs while they are read from the connection. Only the fields the
+ * plugin uses are kept, everything else, such as face landmarks or attributes that are not mapped to the output, is
+ * skipped without being materialized.
+ */
+final class FaceApiResponseParser {
+
+  private FaceApiResponseParser() {
+  }
+
+  /**
+   * Reads the array of faces returned by the detect call.
+   */
+  static List<DetectedFace> readFaces(JsonReader reader) throws IOException {
+    List<DetectedFace> faces = new ArrayList<>();
+    reader.beginArray();
+    while (reader.hasNext()) {
+      faces.add(readFace(reader));
+    }
+    reader.endArray();
+    return faces;
+  }
+
+  /**
+   * Reads the array of faces returned by the Emotion API recognize call. Faces without a rectangle, or with an empty
+   * one, cannot be paired with a detected face and are skipped.
+   */
+  static List<EmotionResult> readEmotions(JsonReader reader) throws IOException {
+    List<EmotionResult> emotions = new ArrayList<>();
+    reader.beginArray();
+    while (reader.hasNext()) {
+      FaceRectangle rectangle = null;
+      Map<String, Double> scores = null;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "faceRectangle":
+            rectangle = readRectangle(reader);
+            break;
+          case "scores":
+            scores = readScores(reader);
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+      if (rectangle != null && rectangle.getWidth() > 0 && rectangle.getHeight() > 0) {
+        emotions.add(new EmotionResult(rectangle, scores));
+      }
+    }
+    reader.endArray();
+    return emotions;
+  }
+
+  private static DetectedFace readFace(JsonReader reader) throws IOException {
+    String faceId = null;
+    FaceRectangle rectangle = null;
+    DetectedFace.Attributes attributes = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "faceId":
+          faceId = nextString(reader);
+          break;
+        case "faceRectangle":
+          rectangle = readRectangle(reader);
+          break;
+        case "faceAttributes":
+          attributes = readAttributes(reader);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return new DetectedFace(faceId, rectangle, attributes);
+  }
+
+  @Nullable
+  private static FaceRectangle readRectangle(JsonReader reader) throws IOException {
+    if (skipNull(reader)) {
+      return null;
+    }
+    int left = 0;
+    int top = 0;
+    int width = 0;
+    int height = 0;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "left":
+          left = reader.nextInt();
+          break;
+        case "top":
+          top = reader.nextInt();
+          break;
+        case "width":
+          width = reader.nextInt();
+          break;
+        case "height":
+          height = reader.nextInt();
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return new FaceRectangle(left, top, width, height);
+  }
+
+  @Nullable
+  private static DetectedFace.Attributes readAttributes(JsonReader reader) throws IOException {
+    if (skipNull(reader)) {
+      return null;
+    }
+    Double age = null;
+    String gender = null;
+    Double smile = null;
+    DetectedFace.FacialHair facialHair = null;
+    String glasses = null;
+    DetectedFace.HeadPose headPose = null;
+    Map<String, Double> emotion = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "age":
+          age = nextDouble(reader);
+          break;
+        case "gender":
+          gender = nextString(reader);
+          break;
+        case "smile":
+          smile = nextDouble(reader);
+          break;
+        case "facialHair":
+          facialHair = readFacialHair(reader);
+          break;
+        case "glasses":
+          glasses = nextString(reader);
+          break;
+        case "headPose":
+          headPose = readHeadPose(reader);
+          break;
+        case "emotion":
+          emotion = readScores(reader);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return new DetectedFace.Attributes(age, gender, smile, facialHair, glasses, headPose, emotion);
+  }
+
+  @Nullable
+  private static DetectedFace.FacialHair readFacialHair(JsonReader reader) throws IOException {
+    if (skipNull(reader)) {
+      return null;
+    }
+    Double moustache = null;
+    Double beard = null;
+    Double sideburns = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "moustache":
+          moustache = nextDouble(reader);
+          break;
+        case "beard":
+          beard = nextDouble(reader);
+          break;
+        case "sideburns":
+          sideburns = nextDouble(reader);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return new DetectedFace.FacialHair(moustache, beard, sideburns);
+  }
+
+  @Nullable
+  private static DetectedFace.HeadPose readHeadPose(JsonReader reader) throws IOException {
+    if (skipNull(reader)) {
+      return null;
+    }
+    Double roll = null;
+    Double yaw = null;
+    Double pitch = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "roll":
+          roll = nextDouble(reader);
+          break;
+        case "yaw":
+          yaw = nextDouble(reader);
+          break;
+        case "pitch":
+          pitch = nextDouble(reader);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return new DetectedFace.HeadPose(roll, yaw, pitch);
+  }
+
+  /**
+   * Reads an object of emotion confidences keyed by emotion name.
+   */
+  @Nullable
+  private static Map<String, Double> readScores(JsonReader reader) throws IOException {
+    if (skipNull(reader)) {
+      return null;
+    }
+    // There are eight emotions, which fit the map without resizing
+    Map<String, Double> scores = new LinkedHashMap<>(16);
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      Double score = nextDouble(reader);
+      if (score != null) {
+        scores.put(name, score);
+      }
+    }
+    reader.endObject();
+    return scores;
+  }
+
+  @Nullable
+  private static Double nextDouble(JsonReader reader) throws IOException {
+    return skipNull(reader) ? null : reader.nextDouble();
+  }
+
+  @Nullable
+  private static String nextString(JsonReader reader) throws IOException {
+    return skipNull(reader) ? null : reader.nextString();
+  }
+
+  /**
+   * Consumes the next value if it is null, returning whether it was.
+   */
+  private static boolean skipNull(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return true;
+    }
+    return false;
+  }
+}
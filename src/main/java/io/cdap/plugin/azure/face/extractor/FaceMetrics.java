@@ -0,0 +1,213 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.azure.face.extractor;
+
+import io.cdap.cdap.etl.api.StageMetrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import javax.annotation.Nullable;
+
+/**
+ * Reports what the transform does through the stage metrics, so slow or failing runs can be attributed to Azure,
+ * the network or the cluster.
+ *
+ * Stage metrics have no histogram type, so latencies are counted in fixed buckets: every call increments exactly
+ * one counter named after the upper bound of its bucket, such as {@code detect.latency.le_250ms}, or
+ * {@code detect.latency.gt_10000ms} for the slowest calls. The total latency is counted as well, so the mean can be
+ * derived from it and the number of calls.
+ */
+final class FaceMetrics {
+  static final String DETECT = "detect";
+  static final String EMOTION = "emotion";
+  static final String IMAGE = "image";
+  static final String IMAGES_PROCESSED = "images.processed";
+  static final String IMAGES_FAILED = "images.failed";
+  static final String IMAGES_WITHOUT_FACES = "images.no.faces";
+  static final String FACES_EMITTED = "faces.emitted";
+  static final String FACES_UNMATCHED = "faces.unmatched";
+  static final String BYTES_UPLOADED = "bytes.uploaded";
+  static final String BATCH_CANVASES = "batch.canvases";
+  static final String BATCH_IMAGES = "batch.images";
+  static final String BATCH_TRUNCATED = "batch.truncated";
+  static final String CIRCUIT_OPENED = "circuit.opened";
+  static final String PREFILTER_PASSED = "prefilter.passed";
+  static final String PREFILTER_SKIPPED = "prefilter.skipped";
+  static final String IMAGES_DEFERRED = "images.deferred";
+
+  private static final long[] LATENCY_BUCKETS_MILLIS = {50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+  private final StageMetrics metrics;
+
+  /**
+   * Reports through the given stage metrics, or discards the metrics if they are null.
+   */
+  FaceMetrics(@Nullable StageMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Records a call to one of the services that returned a response with the given HTTP status.
+   */
+  void recordCall(String call, long latencyMillis, long bytesUploaded, int statusCode) {
+    recordRequest(call, latencyMillis, bytesUploaded);
+    if (statusCode / 100 != 2) {
+      count(call + ".status." + statusCode, 1);
+    }
+  }
+
+  /**
+   * Records a call to one of the services that failed without a response, counting the error by its class, such as
+   * {@code detect.errors.timeout}.
+   */
+  void recordFailedCall(String call, long latencyMillis, long bytesUploaded, IOException error) {
+    recordRequest(call, latencyMillis, bytesUploaded);
+    count(call + ".errors." + getErrorClass(error), 1);
+  }
+
+  void recordRetry(String call) {
+    count(call + ".retries", 1);
+  }
+
+  /**
+   * Records an endpoint that was taken out of rotation after a failed call.
+   */
+  void recordEjection(String call) {
+    count(call + ".ejections", 1);
+  }
+
+  /**
+   * Records a duplicate request sent because a call took longer than the hedge delay.
+   */
+  void recordHedge(String call) {
+    count(call + ".hedges", 1);
+  }
+
+  /**
+   * Records a hedged call whose duplicate request returned first.
+   */
+  void recordHedgeWin(String call) {
+    count(call + ".hedge.wins", 1);
+  }
+
+  /**
+   * Records whether the pre-filter let an image through to Azure or skipped it.
+   */
+  void recordPreFilter(boolean passed) {
+    count(passed ? PREFILTER_PASSED : PREFILTER_SKIPPED, 1);
+  }
+
+  void recordCircuitOpened() {
+    count(CIRCUIT_OPENED, 1);
+  }
+
+  /**
+   * Records images that were sent to the error port because the time budget of their micro-batch was used up.
+   */
+  void recordDeferred(int images) {
+    count(IMAGES_DEFERRED, images);
+  }
+
+  /**
+   * Records a canvas that the given number of images were tiled onto.
+   */
+  void recordBatch(int tiledImages) {
+    count(BATCH_CANVASES, 1);
+    count(BATCH_IMAGES, tiledImages);
+  }
+
+  /**
+   * Records a canvas with too many faces for the detect call, whose given number of images were analyzed again on
+   * their own.
+   */
+  void recordTruncatedBatch(int tiledImages) {
+    count(BATCH_TRUNCATED, tiledImages);
+  }
+
+  /**
+   * Records an image that was analyzed successfully, with the number of faces detected in it, the number of face
+   * records that were emitted for them and the number of faces no emotion scores were found for.
+   */
+  void recordImage(long latencyMillis, int faceCount, int emittedFaces, int unmatchedFaces) {
+    count(IMAGES_PROCESSED, 1);
+    count(FACES_EMITTED, emittedFaces);
+    count(FACES_UNMATCHED, unmatchedFaces);
+    if (faceCount == 0) {
+      count(IMAGES_WITHOUT_FACES, 1);
+    }
+    recordLatency(IMAGE, latencyMillis);
+  }
+
+  /**
+   * Records an image that could not be analyzed, counting the error by its class, such as {@code errors.http.429}.
+   */
+  void recordImageError(long latencyMillis, Exception error) {
+    count(IMAGES_FAILED, 1);
+    count("errors." + getErrorClass(error), 1);
+    recordLatency(IMAGE, latencyMillis);
+  }
+
+  static String getLatencyBucket(long latencyMillis) {
+    for (long bound : LATENCY_BUCKETS_MILLIS) {
+      if (latencyMillis <= bound) {
+        return "le_" + bound + "ms";
+      }
+    }
+    return "gt_" + LATENCY_BUCKETS_MILLIS[LATENCY_BUCKETS_MILLIS.length - 1] + "ms";
+  }
+
+  static String getErrorClass(Exception error) {
+    if (error instanceof FaceApiException) {
+      return "http." + ((FaceApiException) error).getStatusCode();
+    }
+    if (error instanceof CircuitOpenException) {
+      return "circuit.open";
+    }
+    if (error instanceof InterruptedIOException) {
+      // Includes socket and connect timeouts
+      return "timeout";
+    }
+    if (error instanceof IOException) {
+      return "io";
+    }
+    return "other";
+  }
+
+  private void recordRequest(String call, long latencyMillis, long bytesUploaded) {
+    count(call + ".requests", 1);
+    count(BYTES_UPLOADED, bytesUploaded);
+    recordLatency(call, latencyMillis);
+  }
+
+  private void recordLatency(String name, long latencyMillis) {
+    count(name + ".latency." + getLatencyBucket(latencyMillis), 1);
+    count(name + ".latency.total.ms", latencyMillis);
+  }
+
+  /**
+   * Counts a value that may not fit a counter increment, which is capped instead of overflowing.
+   */
+  private void count(String name, long delta) {
+    count(name, (int) Math.min(Integer.MAX_VALUE, delta));
+  }
+
+  private void count(String name, int delta) {
+    if (metrics != null) {
+      metrics.count(name, delta);
+    }
+  }
+}
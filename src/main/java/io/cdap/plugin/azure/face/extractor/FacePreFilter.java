@@ -0,0 +1,175 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Tells locally whether an image may contain a face, so images that clearly do not are never sent to Azure.
+ *
+ * The image is scaled down to a small grid and every pixel is classified as skin or not by its chroma in the YCbCr
+ * color space, which holds for skin tones across ethnicities and most lighting. An image may contain a face if it has
+ * a connected region of skin at least as large as a share of the smallest face the services detect in it, measured
+ * on the grid. That face is 36x36 pixels in images up to 1920 pixels, and proportionally larger in larger images, so
+ * it covers the same share of the grid for every large image. The sensitivity, from 0 to 1, lowers that share: at 1
+ * any skin at all lets the image through. Grayscale images, and images that cannot be decoded, are always let through,
+ * since their color says nothing. The filter errs on the side of letting images through: sand, wood or beige walls
+ * look like skin, while a face without skin tones is rare.
+ */
+final class FacePreFilter {
+  // The smallest face the services detect is 36x36 pixels, in images whose longer edge is at most 1920 pixels
+  private static final int MIN_FACE_EDGE = 36;
+  private static final int MIN_FACE_IMAGE_EDGE = 1920;
+  private static final int GRID_EDGE = 128;
+  // The share of the smallest face that must be skin at a sensitivity of 0
+  private static final double MAX_SKIN_FILL = 0.6d;
+  // Images with fewer colored pixels than this share are treated as grayscale
+  private static final double MIN_COLORED_SHARE = 0.05d;
+  private static final int MIN_CHROMA = 6;
+
+  private final double sensitivity;
+
+  FacePreFilter(double sensitivity) {
+    this.sensitivity = sensitivity;
+  }
+
+  /**
+   * Returns whether the image may contain a face. Large images are subsampled while they are decoded, so they are
+   * never fully decoded.
+   */
+  boolean mayContainFaces(ImageData imageData) throws IOException {
+    try (InputStream stream = imageData.openStream();
+         ImageInputStream input = ImageIO.createImageInputStream(stream)) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        return true;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(input, true, true);
+        int edge = Math.max(reader.getWidth(0), reader.getHeight(0));
+        ImageReadParam readParam = reader.getDefaultReadParam();
+        int subsampling = Math.max(1, edge / (GRID_EDGE * 2));
+        readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return mayContainFaces(reader.read(0, readParam), subsampling);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Returns whether the decoded image may contain a face. The scale is the number of pixels of the original image
+   * each pixel of the decoded image stands for.
+   */
+  boolean mayContainFaces(BufferedImage image, double scale) {
+    double gridScale = Math.max(1.0d, (double) Math.max(image.getWidth(), image.getHeight()) / GRID_EDGE);
+    int width = Math.max(1, (int) Math.round(image.getWidth() / gridScale));
+    int height = Math.max(1, (int) Math.round(image.getHeight() / gridScale));
+    int[] pixels = toGrid(image, width, height);
+
+    boolean[] skin = new boolean[pixels.length];
+    int colored = 0;
+    for (int i = 0; i < pixels.length; i++) {
+      int r = (pixels[i] >> 16) & 0xff;
+      int g = (pixels[i] >> 8) & 0xff;
+      int b = pixels[i] & 0xff;
+      double y = 0.299d * r + 0.587d * g + 0.114d * b;
+      double cb = 128 - 0.168736d * r - 0.331264d * g + 0.5d * b;
+      double cr = 128 + 0.5d * r - 0.418688d * g - 0.081312d * b;
+      if (Math.abs(cb - 128) + Math.abs(cr - 128) > MIN_CHROMA) {
+        colored++;
+      }
+      skin[i] = y >= 40 && cb >= 77 && cb <= 127 && cr >= 133 && cr <= 173;
+    }
+    if (colored < pixels.length * MIN_COLORED_SHARE) {
+      return true;
+    }
+
+    // The smallest face grows with the image beyond 1920 pixels, which keeps it at a fixed share of the grid
+    double imageEdge = Math.max(image.getWidth(), image.getHeight()) * scale;
+    double minFaceEdge = MIN_FACE_EDGE * Math.max(1.0d, imageEdge / MIN_FACE_IMAGE_EDGE) / (scale * gridScale);
+    int minRegion = (int) Math.max(1, Math.floor(minFaceEdge * minFaceEdge * MAX_SKIN_FILL * (1 - sensitivity)));
+    return getLargestRegion(skin, width, height) >= minRegion;
+  }
+
+  private static int[] toGrid(BufferedImage image, int width, int height) {
+    BufferedImage grid = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = grid.createGraphics();
+    try {
+      graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.drawImage(image, 0, 0, width, height, null);
+    } finally {
+      graphics.dispose();
+    }
+    return grid.getRGB(0, 0, width, height, null, 0, width);
+  }
+
+  /**
+   * Returns the number of pixels in the largest 4-connected region of the mask.
+   */
+  private static int getLargestRegion(boolean[] mask, int width, int height) {
+    boolean[] visited = new boolean[mask.length];
+    int[] stack = new int[mask.length];
+    int largest = 0;
+    for (int start = 0; start < mask.length; start++) {
+      if (!mask[start] || visited[start]) {
+        continue;
+      }
+      int size = 0;
+      int top = 0;
+      stack[top++] = start;
+      visited[start] = true;
+      while (top > 0) {
+        int pixel = stack[--top];
+        size++;
+        int x = pixel % width;
+        int y = pixel / width;
+        if (x > 0) {
+          top = push(mask, visited, stack, top, pixel - 1);
+        }
+        if (x < width - 1) {
+          top = push(mask, visited, stack, top, pixel + 1);
+        }
+        if (y > 0) {
+          top = push(mask, visited, stack, top, pixel - width);
+        }
+        if (y < height - 1) {
+          top = push(mask, visited, stack, top, pixel + width);
+        }
+      }
+      largest = Math.max(largest, size);
+    }
+    return largest;
+  }
+
+  private static int push(boolean[] mask, boolean[] visited, int[] stack, int top, int pixel) {
+    if (mask[pixel] && !visited[pixel]) {
+      visited[pixel] = true;
+      stack[top++] = pixel;
+    }
+    return top;
+  }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.FaceAttribute;
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.ImageOutput;
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.OutputMode;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import javax.annotation.Nullable;
+
+/**
+ * Builds the output records of the transform. Depending on the output mode, either one record is emitted per face,
+ * or one record is emitted per image with the faces nested in it.
+ */
+final class FaceRecordWriter {
+  static final String RAW_IMAGE_DATA = "raw_image_data";
+  static final String IMAGE_HASH = "image_hash";
+  static final String FACE_THUMBNAIL = "face_thumbnail";
+  static final String FACE_COUNT = "face_count";
+  static final String LATENCY_MS = "latency_ms";
+  static final String STATUS = "status";
+  static final String ERROR = "error";
+  static final String FACES = "faces";
+  static final String STATUS_SUCCESS = "success";
+  static final String STATUS_ERROR = "error";
+
+  private static final List<Schema.Field> FACE_FIELDS = Arrays.asList(
+    Schema.Field.of("rectangle_left", Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of("rectangle_top", Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of("rectangle_height", Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of("rectangle_width", Schema.nullableOf(Schema.of(Schema.Type.INT))),
+    Schema.Field.of("face_id", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("age", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("mustache", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("beard", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("sideburns", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("gender", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("glasses", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("head_pose_roll", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("head_pose_yaw", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("head_pose_pitch", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("smile", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("happiness", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("neutral", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("surprise", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("fear", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("anger", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("contempt", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("disgust", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+    Schema.Field.of("sadness", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))));
+
+  private static final Set<String> EMOTION_FIELDS = new HashSet<>(Arrays.asList(
+    "happiness", "neutral", "surprise", "fear", "anger", "contempt", "disgust", "sadness"));
+
+  // The attribute each face field belongs to. Fields that are not listed, the face rectangle, are always present.
+  private static final Map<String, FaceAttribute> FIELD_ATTRIBUTES = createFieldAttributes();
+
+  private final ImageOutput imageOutput;
+  private final OutputMode outputMode;
+  private final Set<FaceAttribute> attributes;
+  private final Schema faceSchema;
+  private final Schema outputSchema;
+  // Prepared once for the selected attributes, so writing a face does not check which attributes were selected
+  private final AttributeWriter[] attributeWriters;
+  private final String[] emotionFields;
+
+  FaceRecordWriter(ImageOutput imageOutput, OutputMode outputMode, Set<FaceAttribute> attributes) {
+    this.imageOutput = imageOutput;
+    this.outputMode = outputMode;
+    this.attributes = attributes;
+    this.faceSchema = createFaceSchema(imageOutput, outputMode, attributes);
+    this.outputSchema = outputMode == OutputMode.FACE ? faceSchema : createImageSchema(imageOutput, faceSchema);
+    this.attributeWriters = createAttributeWriters(attributes);
+    this.emotionFields = attributes.contains(FaceAttribute.EMOTION)
+      ? EMOTION_FIELDS.toArray(new String[0]) : new String[0];
+  }
+
+  /**
+   * Returns the schema of the records emitted by the transform for the given image output, output mode and face
+   * attributes. Only the fields of the given attributes are included.
+   */
+  static Schema createOutputSchema(ImageOutput imageOutput, OutputMode outputMode, Set<FaceAttribute> attributes) {
+    return new FaceRecordWriter(imageOutput, outputMode, attributes).getOutputSchema();
+  }
+
+  Schema getOutputSchema() {
+    return outputSchema;
+  }
+
+  /**
+   * Returns whether face records have emotion fields.
+   */
+  boolean hasEmotions() {
+    return attributes.contains(FaceAttribute.EMOTION);
+  }
+
+  boolean isImageMode() {
+    return outputMode == OutputMode.IMAGE;
+  }
+
+  /**
+   * Returns whether face records need the decoded image to be passed in.
+   */
+  boolean needsDecodedImage() {
+    return imageOutput == ImageOutput.THUMBNAIL;
+  }
+
+  /**
+   * Creates the record of a single face. In face mode this is an output record, in image mode it is an element of the
+   * faces array of the image record.
+   */
+  StructuredRecord createFaceRecord(AnalyzedImage analyzed, @Nullable BufferedImage image, DetectedFace face,
+                                    @Nullable Map<String, Double> emotionScores) throws IOException {
+    FaceRectangle rectangle = face.getFaceRectangle();
+    StructuredRecord.Builder builder = StructuredRecord.builder(faceSchema)
+      .set("rectangle_left", rectangle.getLeft())
+      .set("rectangle_top", rectangle.getTop())
+      .set("rectangle_height", rectangle.getHeight())
+      .set("rectangle_width", rectangle.getWidth());
+    for (AttributeWriter attributeWriter : attributeWriters) {
+      attributeWriter.write(builder, face);
+    }
+
+    if (imageOutput == ImageOutput.THUMBNAIL) {
+      if (image != null) {
+        builder.set(FACE_THUMBNAIL, Images.crop(image, rectangle.getLeft(), rectangle.getTop(),
+                                                rectangle.getWidth(), rectangle.getHeight()));
+      }
+    } else if (outputMode == OutputMode.FACE) {
+      setImage(builder, analyzed);
+    }
+
+    if (emotionScores != null) {
+      for (String field : emotionFields) {
+        Double score = emotionScores.get(field);
+        if (score != null) {
+          builder.set(field, score);
+        }
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Creates the image mode record of a successfully analyzed image from the records of its faces. The face count is
+   * the number of faces detected, even if the records of some of them could not be created.
+   */
+  StructuredRecord createImageRecord(AnalyzedImage analyzed, List<StructuredRecord> faces) throws IOException {
+    List<DetectedFace> detectedFaces = analyzed.getAnalysis().getFaces();
+    StructuredRecord.Builder builder = StructuredRecord.builder(outputSchema)
+      .set(FACE_COUNT, detectedFaces == null ? 0 : detectedFaces.size())
+      .set(LATENCY_MS, analyzed.getLatencyMillis())
+      .set(STATUS, STATUS_SUCCESS)
+      .set(FACES, faces);
+    setImage(builder, analyzed);
+    return builder.build();
+  }
+
+  /**
+   * Creates the image mode record of an image that could not be analyzed.
+   */
+  StructuredRecord createErrorRecord(AnalyzedImage analyzed) throws IOException {
+    Exception error = analyzed.getError();
+    StructuredRecord.Builder builder = StructuredRecord.builder(outputSchema)
+      .set(LATENCY_MS, analyzed.getLatencyMillis())
+      .set(STATUS, STATUS_ERROR)
+      .set(ERROR, error == null ? null : error.getMessage())
+      .set(FACES, new ArrayList<StructuredRecord>());
+    setImage(builder, analyzed);
+    return builder.build();
+  }
+
+  private void setImage(StructuredRecord.Builder builder, AnalyzedImage analyzed) throws IOException {
+    switch (imageOutput) {
+      case FULL:
+        builder.set(RAW_IMAGE_DATA, analyzed.getImageBytes());
+        break;
+      case HASH:
+        builder.set(IMAGE_HASH, analyzed.getImageHash());
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static AttributeWriter[] createAttributeWriters(Set<FaceAttribute> attributes) {
+    List<AttributeWriter> writers = new ArrayList<>();
+    for (FaceAttribute attribute : attributes) {
+      switch (attribute) {
+        case FACE_ID:
+          writers.add((builder, face) -> builder.set("face_id", face.getFaceId()));
+          break;
+        case AGE:
+          writers.add(ofAttributes((builder, faceAttributes) -> builder.set("age", faceAttributes.getAge())));
+          break;
+        case GENDER:
+          writers.add(ofAttributes((builder, faceAttributes) -> builder.set("gender", faceAttributes.getGender())));
+          break;
+        case GLASSES:
+          writers.add(ofAttributes((builder, faceAttributes) -> builder.set("glasses", faceAttributes.getGlasses())));
+          break;
+        case SMILE:
+          writers.add(ofAttributes((builder, faceAttributes) -> builder.set("smile", faceAttributes.getSmile())));
+          break;
+        case FACIAL_HAIR:
+          writers.add(ofAttributes((builder, faceAttributes) -> {
+            DetectedFace.FacialHair facialHair = faceAttributes.getFacialHair();
+            if (facialHair != null) {
+              builder.set("mustache", facialHair.getMoustache())
+                .set("beard", facialHair.getBeard())
+                .set("sideburns", facialHair.getSideburns());
+            }
+          }));
+          break;
+        case HEAD_POSE:
+          writers.add(ofAttributes((builder, faceAttributes) -> {
+            DetectedFace.HeadPose headPose = faceAttributes.getHeadPose();
+            if (headPose != null) {
+              builder.set("head_pose_roll", headPose.getRoll())
+                .set("head_pose_yaw", headPose.getYaw())
+                .set("head_pose_pitch", headPose.getPitch());
+            }
+          }));
+          break;
+        default:
+          // Emotion scores are written from the scores passed in with each face
+          break;
+      }
+    }
+    return writers.toArray(new AttributeWriter[0]);
+  }
+
+  /**
+   * Returns a writer that is skipped for faces the service returned no attributes for.
+   */
+  private static AttributeWriter ofAttributes(BiConsumer<StructuredRecord.Builder, DetectedFace.Attributes> writer) {
+    return (builder, face) -> {
+      DetectedFace.Attributes faceAttributes = face.getFaceAttributes();
+      if (faceAttributes != null) {
+        writer.accept(builder, faceAttributes);
+      }
+    };
+  }
+
+  private static Schema createFaceSchema(ImageOutput imageOutput, OutputMode outputMode,
+                                         Set<FaceAttribute> attributes) {
+    List<Schema.Field> fields = new ArrayList<>();
+    if (imageOutput == ImageOutput.THUMBNAIL) {
+      fields.add(Schema.Field.of(FACE_THUMBNAIL, Schema.nullableOf(Schema.of(Schema.Type.BYTES))));
+    } else if (outputMode == OutputMode.FACE) {
+      addImageField(fields, imageOutput);
+    }
+    for (Schema.Field field : FACE_FIELDS) {
+      FaceAttribute attribute = FIELD_ATTRIBUTES.get(field.getName());
+      if (attribute == null || attributes.contains(attribute)) {
+        fields.add(field);
+      }
+    }
+    return Schema.recordOf(outputMode == OutputMode.FACE ? "output" : "face", fields);
+  }
+
+  private static Schema createImageSchema(ImageOutput imageOutput, Schema faceSchema) {
+    List<Schema.Field> fields = new ArrayList<>();
+    addImageField(fields, imageOutput);
+    fields.add(Schema.Field.of(FACE_COUNT, Schema.nullableOf(Schema.of(Schema.Type.INT))));
+    fields.add(Schema.Field.of(LATENCY_MS, Schema.of(Schema.Type.LONG)));
+    fields.add(Schema.Field.of(STATUS, Schema.of(Schema.Type.STRING)));
+    fields.add(Schema.Field.of(ERROR, Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+    fields.add(Schema.Field.of(FACES, Schema.arrayOf(faceSchema)));
+    return Schema.recordOf("output", fields);
+  }
+
+  private static void addImageField(List<Schema.Field> fields, ImageOutput imageOutput) {
+    switch (imageOutput) {
+      case FULL:
+        fields.add(Schema.Field.of(RAW_IMAGE_DATA, Schema.nullableOf(Schema.of(Schema.Type.BYTES))));
+        break;
+      case HASH:
+        fields.add(Schema.Field.of(IMAGE_HASH, Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static Map<String, FaceAttribute> createFieldAttributes() {
+    Map<String, FaceAttribute> fieldAttributes = new HashMap<>();
+    fieldAttributes.put("face_id", FaceAttribute.FACE_ID);
+    fieldAttributes.put("age", FaceAttribute.AGE);
+    fieldAttributes.put("gender", FaceAttribute.GENDER);
+    fieldAttributes.put("smile", FaceAttribute.SMILE);
+    fieldAttributes.put("glasses", FaceAttribute.GLASSES);
+    for (String field : Arrays.asList("mustache", "beard", "sideburns")) {
+      fieldAttributes.put(field, FaceAttribute.FACIAL_HAIR);
+    }
+    for (String field : Arrays.asList("head_pose_roll", "head_pose_yaw", "head_pose_pitch")) {
+      fieldAttributes.put(field, FaceAttribute.HEAD_POSE);
+    }
+    for (String field : EMOTION_FIELDS) {
+      fieldAttributes.put(field, FaceAttribute.EMOTION);
+    }
+    return fieldAttributes;
+  }
+
+  /**
+   * Writes the fields of one face attribute to a face record.
+   */
+  private interface AttributeWriter {
+    void write(StructuredRecord.Builder builder, DetectedFace face);
+  }
+}
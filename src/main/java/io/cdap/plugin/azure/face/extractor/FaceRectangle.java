@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+/**
+ * The location of a face in an image, in pixels.
+ */
+final class FaceRectangle {
+  private int left;
+  private int top;
+  private int width;
+  private int height;
+
+  FaceRectangle(int left, int top, int width, int height) {
+    this.left = left;
+    this.top = top;
+    this.width = width;
+    this.height = height;
+  }
+
+  int getLeft() {
+    return left;
+  }
+
+  int getTop() {
+    return top;
+  }
+
+  int getWidth() {
+    return width;
+  }
+
+  int getHeight() {
+    return height;
+  }
+
+  /**
+   * Multiplies all coordinates by the given factor.
+   */
+  void scale(double factor) {
+    left = (int) Math.round(left * factor);
+    top = (int) Math.round(top * factor);
+    width = (int) Math.round(width * factor);
+    height = (int) Math.round(height * factor);
+  }
+
+  /**
+   * Moves the rectangle by the given number of pixels.
+   */
+  void translate(int dx, int dy) {
+    left += dx;
+    top += dy;
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import io.cdap.cdap.etl.api.StageMetrics;
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.EmotionSource;
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.FaceAttribute;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps {@link FaceAnalysis} results in a directory of a Hadoop file system, so they outlive the run. A re-run of the
+ * same input reads the results back instead of calling Azure again.
+ *
+ * Results are stored as one JSON file per image, named after the image's {@link ImageData#hash content hash}, under a
+ * subdirectory named after the face attributes and the emotion source, since those decide what a result holds.
+ * Changing either starts from an empty store rather than emitting results that lack the requested attributes.
+ */
+final class FaceResultStore {
+  private static final Logger LOG = LoggerFactory.getLogger(FaceResultStore.class);
+  private static final Gson GSON = new Gson();
+
+  private final FileSystem fileSystem;
+  private final Path directory;
+  private final StageMetrics metrics;
+
+  FaceResultStore(String path, Set<FaceAttribute> attributes, EmotionSource emotionSource,
+                  Configuration configuration, @Nullable StageMetrics metrics) throws IOException {
+    Path root = new Path(path);
+    this.fileSystem = root.getFileSystem(configuration);
+    this.directory = new Path(root, getNamespace(attributes, emotionSource));
+    this.metrics = metrics;
+  }
+
+  /**
+   * Returns the stored analysis of the image with the given content hash, or {@code null} if there is none or it
+   * cannot be read.
+   */
+  @Nullable
+  FaceAnalysis get(String imageHash) {
+    Path file = getFile(imageHash);
+    try (Reader reader = new InputStreamReader(fileSystem.open(file), StandardCharsets.UTF_8)) {
+      FaceAnalysis analysis = GSON.fromJson(reader, FaceAnalysis.class);
+      count(analysis == null ? "store.misses" : "store.hits");
+      return analysis;
+    } catch (FileNotFoundException e) {
+      count("store.misses");
+      return null;
+    } catch (IOException | JsonParseException e) {
+      // A result that was only partially written when a run failed is analyzed again and overwritten
+      LOG.warn("Failed to read the stored analysis of image '{}' from '{}'.", imageHash, file, e);
+      count("store.misses");
+      return null;
+    }
+  }
+
+  /**
+   * Stores the analysis of the image with the given content hash. A failure to store it is logged, since the
+   * analysis itself succeeded.
+   */
+  void put(String imageHash, FaceAnalysis analysis) {
+    Path file = getFile(imageHash);
+    try (Writer writer = new OutputStreamWriter(fileSystem.create(file, true), StandardCharsets.UTF_8)) {
+      GSON.toJson(analysis, writer);
+    } catch (IOException e) {
+      LOG.warn("Failed to store the analysis of image '{}' in '{}'.", imageHash, file, e);
+      count("store.errors");
+    }
+  }
+
+  private Path getFile(String imageHash) {
+    return new Path(directory, imageHash + ".json");
+  }
+
+  private void count(String metric) {
+    if (metrics != null) {
+      metrics.count(metric, 1);
+    }
+  }
+
+  /**
+   * Returns the name of the subdirectory holding the results of the given attributes and emotion source. It only
+   * depends on the set of attributes, not on the order they were configured in.
+   */
+  static String getNamespace(Set<FaceAttribute> attributes, EmotionSource emotionSource) {
+    Set<FaceAttribute> sorted = EnumSet.noneOf(FaceAttribute.class);
+    sorted.addAll(attributes);
+    String description = Joiner.on(',').join(sorted) + ";" + emotionSource;
+    return Hashing.murmur3_32().hashString(description, StandardCharsets.UTF_8).toString();
+  }
+}
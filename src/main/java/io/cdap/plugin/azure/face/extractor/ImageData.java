@@ -0,0 +1,239 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.azure.face.extractor;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The content of an input image. It is either held in memory, as a byte array or a region of one, or read from a
+ * file system path every time it is needed, so an image is never copied just to upload it.
+ */
+abstract class ImageData {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Returns the image held in the given array. The array is used as is and must not be modified afterwards.
+   */
+  static ImageData of(byte[] data) {
+    return new InMemory(data, 0, data.length);
+  }
+
+  /**
+   * Returns the image held in the remaining bytes of the given buffer. Heap buffers are used without copying them,
+   * direct buffers are copied once.
+   */
+  static ImageData of(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      return new InMemory(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+    byte[] data = new byte[buffer.remaining()];
+    buffer.duplicate().get(data);
+    return of(data);
+  }
+
+  /**
+   * Returns the image stored at the given path of a Hadoop file system, such as a local path, an HDFS path or an
+   * object store URI. Nothing is read until the content is needed.
+   */
+  static ImageData of(String path, Configuration configuration) {
+    return new FromPath(new Path(path), configuration);
+  }
+
+  /**
+   * Returns the size of the image in bytes.
+   */
+  abstract long getLength() throws IOException;
+
+  /**
+   * Opens a new stream over the content of the image.
+   */
+  abstract InputStream openStream() throws IOException;
+
+  /**
+   * Returns the content as a request entity that is written straight from the source, and can be written again
+   * when the request is retried.
+   */
+  abstract HttpEntity toEntity() throws IOException;
+
+  /**
+   * Returns the content as an array, reading it into memory if needed. An image held in a whole array returns that
+   * array, which must not be modified.
+   */
+  abstract byte[] toByteArray() throws IOException;
+
+  /**
+   * Returns the hex encoded content hash of the image.
+   */
+  String hash() throws IOException {
+    Hasher hasher = HASH_FUNCTION.newHasher();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream input = openStream()) {
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        hasher.putBytes(buffer, 0, read);
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * An image held in a region of a byte array.
+   */
+  private static final class InMemory extends ImageData {
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+
+    private InMemory(byte[] data, int offset, int length) {
+      this.data = data;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    long getLength() {
+      return length;
+    }
+
+    @Override
+    InputStream openStream() {
+      return new ByteArrayInputStream(data, offset, length);
+    }
+
+    @Override
+    HttpEntity toEntity() {
+      return new ByteArrayEntity(data, offset, length, ContentType.APPLICATION_OCTET_STREAM);
+    }
+
+    @Override
+    byte[] toByteArray() {
+      return offset == 0 && length == data.length ? data : Arrays.copyOfRange(data, offset, offset + length);
+    }
+
+    @Override
+    String hash() {
+      return HASH_FUNCTION.hashBytes(data, offset, length).toString();
+    }
+  }
+
+  /**
+   * An image stored in a file system, which is streamed from the file every time it is read.
+   */
+  private static final class FromPath extends ImageData {
+    private final Path path;
+    private final Configuration configuration;
+    private long length = -1;
+
+    private FromPath(Path path, Configuration configuration) {
+      this.path = path;
+      this.configuration = configuration;
+    }
+
+    @Override
+    synchronized long getLength() throws IOException {
+      if (length < 0) {
+        length = getFileSystem().getFileStatus(path).getLen();
+      }
+      return length;
+    }
+
+    @Override
+    InputStream openStream() throws IOException {
+      return getFileSystem().open(path, BUFFER_SIZE);
+    }
+
+    @Override
+    HttpEntity toEntity() throws IOException {
+      return new PathEntity(this);
+    }
+
+    @Override
+    byte[] toByteArray() throws IOException {
+      try (InputStream input = openStream()) {
+        return ByteStreams.toByteArray(input);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return path.toString();
+    }
+
+    private FileSystem getFileSystem() throws IOException {
+      return path.getFileSystem(configuration);
+    }
+  }
+
+  /**
+   * A repeatable entity that copies the file into the request as it is sent, so it is never buffered whole.
+   */
+  private static final class PathEntity extends AbstractHttpEntity {
+    private final FromPath image;
+    private final long length;
+
+    private PathEntity(FromPath image) throws IOException {
+      this.image = image;
+      this.length = image.getLength();
+      setContentType(ContentType.APPLICATION_OCTET_STREAM.toString());
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return true;
+    }
+
+    @Override
+    public long getContentLength() {
+      return length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return image.openStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream output) throws IOException {
+      try (InputStream input = image.openStream()) {
+        ByteStreams.copy(input, output);
+      }
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return false;
+    }
+  }
+}
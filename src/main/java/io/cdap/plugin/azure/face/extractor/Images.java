@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import javax.annotation.Nullable;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Utility methods for working with the raw image bytes.
+ */
+final class Images {
+  // The largest image the Azure services accept
+  static final int MAX_UPLOAD_BYTES = 4 * 1024 * 1024;
+
+  private Images() {
+  }
+
+  /**
+   * Decodes the given image, returning {@code null} if the format is not supported.
+   */
+  @Nullable
+  static BufferedImage decode(ImageData imageData) throws IOException {
+    try (InputStream input = imageData.openStream()) {
+      return ImageIO.read(input);
+    }
+  }
+
+  /**
+   * Returns the width and height of the image, read from its header, or {@code null} if the format is not supported.
+   */
+  @Nullable
+  static Dimension readSize(ImageData imageData) throws IOException {
+    try (InputStream stream = imageData.openStream();
+         ImageInputStream input = ImageIO.createImageInputStream(stream)) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(input, true, true);
+        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Returns the given region of the image encoded as a JPEG, or {@code null} if the region lies outside of the image.
+   * The region is clipped to the image bounds.
+   */
+  @Nullable
+  static byte[] crop(BufferedImage image, int left, int top, int width, int height) throws IOException {
+    int x = Math.max(left, 0);
+    int y = Math.max(top, 0);
+    int w = Math.min(left + width, image.getWidth()) - x;
+    int h = Math.min(top + height, image.getHeight()) - y;
+    if (w <= 0 || h <= 0) {
+      return null;
+    }
+    // JPEG has no alpha channel, so the region is always drawn onto an RGB image
+    BufferedImage region = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = region.createGraphics();
+    try {
+      graphics.drawImage(image, 0, 0, w, h, x, y, x + w, y + h, null);
+    } finally {
+      graphics.dispose();
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ImageIO.write(region, "jpg", output);
+    return output.toByteArray();
+  }
+
+  /**
+   * Prepares an image for upload. Only the image header is read, unless the image is larger than the given maximum
+   * edge length or the service size limit, in which case it is downscaled to fit and re-encoded as a JPEG with the
+   * given quality. Images in formats that cannot be read are returned unchanged.
+   */
+  static PreparedImage preflight(ImageData imageData, int maxEdge, float jpegQuality) throws IOException {
+    try (InputStream stream = imageData.openStream();
+         ImageInputStream input = ImageIO.createImageInputStream(stream)) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        return new PreparedImage(imageData, 1.0d);
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(input, true, true);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        int edge = Math.max(width, height);
+        if (edge <= maxEdge && imageData.getLength() <= MAX_UPLOAD_BYTES) {
+          return new PreparedImage(imageData, 1.0d);
+        }
+
+        int targetEdge = Math.min(edge, maxEdge);
+        // Let the reader skip pixels while decoding so that a large image is never fully decoded, then scale the
+        // remainder smoothly to the target size
+        ImageReadParam readParam = reader.getDefaultReadParam();
+        int subsampling = Math.max(1, edge / (targetEdge * 2));
+        readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        BufferedImage decoded = reader.read(0, readParam);
+
+        double scale = (double) edge / targetEdge;
+        int targetWidth = Math.max(1, (int) Math.round(width / scale));
+        int targetHeight = Math.max(1, (int) Math.round(height / scale));
+        BufferedImage resized = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = resized.createGraphics();
+        try {
+          graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+          graphics.drawImage(decoded, 0, 0, targetWidth, targetHeight, null);
+        } finally {
+          graphics.dispose();
+        }
+        return new PreparedImage(ImageData.of(encodeJpeg(resized, jpegQuality)), scale);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Encodes the image as a JPEG with the given quality, from 0 to 1.
+   */
+  static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ImageOutputStream output = ImageIO.createImageOutputStream(bytes)) {
+      writer.setOutput(output);
+      ImageWriteParam writeParam = writer.getDefaultWriteParam();
+      writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      writeParam.setCompressionQuality(quality);
+      writer.write(null, new IIOImage(image, null, null), writeParam);
+    } finally {
+      writer.dispose();
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * The bytes to upload for an image, and the factor that maps coordinates in the uploaded image back to the original.
+   */
+  static final class PreparedImage {
+    private final ImageData data;
+    private final double scale;
+
+    PreparedImage(ImageData data, double scale) {
+      this.data = data;
+      this.scale = scale;
+    }
+
+    ImageData getData() {
+      return data;
+    }
+
+    double getScale() {
+      return scale;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import java.util.Arrays;
+
+/**
+ * Decides when a call to one service is hedged, that is when a duplicate request is sent because the first one is
+ * taking longer than most calls do.
+ *
+ * The hedge delay is the configured percentile of the latencies of the recent successful calls, and no call is hedged
+ * until enough of them were seen. Hedges are only sent while they stay within the configured percentage of the calls
+ * made, so a service that is slow across the board does not get twice the load.
+ */
+final class RequestHedger {
+  private static final int LATENCY_WINDOW = 256;
+  private static final int MIN_SAMPLES = 20;
+
+  private final double percentile;
+  private final double maxExtraPercent;
+  private final long[] latencies = new long[LATENCY_WINDOW];
+  private int samples;
+  private int next;
+  private long calls;
+  private long hedges;
+
+  RequestHedger(double percentile, double maxExtraPercent) {
+    this.percentile = percentile;
+    this.maxExtraPercent = maxExtraPercent;
+  }
+
+  /**
+   * Returns how long a call may take before it is hedged, or -1 if too few calls were seen to tell.
+   */
+  long getDelayMillis() {
+    long[] sorted;
+    synchronized (this) {
+      if (samples < MIN_SAMPLES) {
+        return -1;
+      }
+      sorted = Arrays.copyOf(latencies, samples);
+    }
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+  }
+
+  /**
+   * Records a call that is about to be made, which adds to the budget of hedges.
+   */
+  synchronized void onCall() {
+    calls++;
+  }
+
+  /**
+   * Records the latency of a successful request.
+   */
+  synchronized void onSuccess(long latencyMillis) {
+    latencies[next] = latencyMillis;
+    next = (next + 1) % LATENCY_WINDOW;
+    samples = Math.min(samples + 1, LATENCY_WINDOW);
+  }
+
+  /**
+   * Returns whether a hedge may be sent, and counts it if so.
+   */
+  synchronized boolean tryHedge() {
+    if ((hedges + 1) * 100 > calls * maxExtraPercent) {
+      return false;
+    }
+    hedges++;
+    return true;
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.azure.face.extractor;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLException;
+
+/**
+ * Decides whether a failed Face or Emotion API call is retried and how long to wait before retrying it.
+ *
+ * Delays use exponential backoff with full jitter: before retry n the client waits a random time between 0 and
+ * min(maxDelay, initialDelay * 2^(n-1)), so that many executors throttled at the same moment do not retry in
+ * lockstep. A delay requested by the service through a Retry-After header is used as is.
+ */
+final class RetryPolicy {
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final int REQUEST_TIMEOUT = 408;
+  // Keeps the shifted delay from overflowing
+  private static final int MAX_SHIFT = 30;
+
+  private final int maxRetries;
+  private final long initialDelayMillis;
+  private final long maxDelayMillis;
+
+  RetryPolicy(int maxRetries, long initialDelayMillis, long maxDelayMillis) {
+    this.maxRetries = maxRetries;
+    this.initialDelayMillis = initialDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Returns whether a call that failed with the given HTTP status may succeed when retried.
+   */
+  static boolean isRetryable(int statusCode) {
+    return statusCode == TOO_MANY_REQUESTS || statusCode == REQUEST_TIMEOUT || statusCode / 100 == 5;
+  }
+
+  /**
+   * Returns whether a call that failed with the given exception may succeed when retried. Besides retryable HTTP
+   * statuses these are failures without a response, such as timeouts and refused or reset connections. Unknown hosts
+   * and TLS failures are not retried, as they fail the same way again, and neither are calls on an interrupted thread.
+   */
+  static boolean isRetryable(IOException e) {
+    if (e instanceof FaceApiException) {
+      return isRetryable(((FaceApiException) e).getStatusCode());
+    }
+    return !Thread.currentThread().isInterrupted() && !(e instanceof UnknownHostException || e instanceof SSLException);
+  }
+
+  static boolean isThrottled(int statusCode) {
+    return statusCode == TOO_MANY_REQUESTS;
+  }
+
+  /**
+   * Returns the number of milliseconds to wait before the given retry, counting from 1.
+   */
+  long getDelayMillis(int retry, @Nullable Long retryAfterMillis) {
+    if (retryAfterMillis != null) {
+      return retryAfterMillis;
+    }
+    long ceiling = Math.min(maxDelayMillis, initialDelayMillis << Math.min(retry - 1, MAX_SHIFT));
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+}
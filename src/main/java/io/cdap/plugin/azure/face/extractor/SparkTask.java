@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.cdap.cdap.etl.api.Engine;
+
+import java.lang.reflect.Method;
+import javax.annotation.Nullable;
+
+/**
+ * The Spark task that runs the stage. The engine is only known to the pipeline configurer, and whether the pipeline
+ * is a streaming pipeline is not known to the stage at all, so at runtime both are told from the Spark task the
+ * calling thread runs. Spark is looked up reflectively, since it is not on the classpath of MapReduce tasks.
+ */
+final class SparkTask {
+  // Spark Streaming sets this local property on the jobs of each micro-batch
+  private static final String BATCH_TIME_PROPERTY = "spark.streaming.internal.batchTime";
+  private static final Method GET_TASK_CONTEXT;
+  private static final Method TASK_ATTEMPT_ID;
+  private static final Method GET_LOCAL_PROPERTY;
+
+  static {
+    Method getTaskContext = null;
+    Method taskAttemptId = null;
+    Method getLocalProperty = null;
+    try {
+      Class<?> taskContextClass = Class.forName("org.apache.spark.TaskContext");
+      getTaskContext = taskContextClass.getMethod("get");
+      taskAttemptId = taskContextClass.getMethod("taskAttemptId");
+      getLocalProperty = taskContextClass.getMethod("getLocalProperty", String.class);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      // Not running on Spark
+    }
+    GET_TASK_CONTEXT = getTaskContext;
+    TASK_ATTEMPT_ID = taskAttemptId;
+    GET_LOCAL_PROPERTY = getLocalProperty;
+  }
+
+  private final long attemptId;
+  private final boolean streaming;
+
+  @VisibleForTesting
+  SparkTask(long attemptId, boolean streaming) {
+    this.attemptId = attemptId;
+    this.streaming = streaming;
+  }
+
+  /**
+   * Returns the Spark task the calling thread runs, or null if it does not run one, as on MapReduce.
+   */
+  @Nullable
+  static SparkTask current() {
+    if (GET_TASK_CONTEXT == null) {
+      return null;
+    }
+    try {
+      Object taskContext = GET_TASK_CONTEXT.invoke(null);
+      if (taskContext == null) {
+        return null;
+      }
+      return new SparkTask((Long) TASK_ATTEMPT_ID.invoke(taskContext),
+                           GET_LOCAL_PROPERTY.invoke(taskContext, BATCH_TIME_PROPERTY) != null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the engine that runs the given task.
+   */
+  static Engine getEngine(@Nullable SparkTask task) {
+    return task == null ? Engine.MAPREDUCE : Engine.SPARK;
+  }
+
+  /**
+   * Returns the id of the task attempt, which is unique within the Spark application. Each partition of a
+   * micro-batch is processed by a different task attempt.
+   */
+  long getAttemptId() {
+    return attemptId;
+  }
+
+  /**
+   * Returns whether the task processes a micro-batch of a streaming pipeline.
+   */
+  boolean isStreaming() {
+    return streaming;
+  }
+}
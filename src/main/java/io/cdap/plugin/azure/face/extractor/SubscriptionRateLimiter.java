@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.azure.face.extractor;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A token bucket that limits the rate of requests sent with one subscription key.
+ *
+ * Azure throttles each key separately, so limiters are shared by every client in the JVM that uses the same key,
+ * and all the threads of an executor draw from the same budget. Stages that use the same key share its quota, so the
+ * lowest rate any of them configured applies to all of them. The rate adapts to throttling: it is halved every time
+ * Azure answers with 429, down to a tenth of the configured rate, and recovers by a tenth of the configured rate with
+ * each successful call. Limiters are looked up by a hash of the key, so the keys themselves are not kept.
+ */
+final class SubscriptionRateLimiter {
+  private static final ConcurrentMap<HashCode, SubscriptionRateLimiter> LIMITERS = new ConcurrentHashMap<>();
+  private static final double MIN_RATE_FRACTION = 0.1d;
+  private static final double RECOVERY_FRACTION = 0.1d;
+
+  private final RateLimiter rateLimiter;
+  private double configuredRate;
+
+  private SubscriptionRateLimiter(double requestsPerSecond) {
+    this.rateLimiter = RateLimiter.create(requestsPerSecond);
+    this.configuredRate = requestsPerSecond;
+  }
+
+  /**
+   * Returns the limiter shared by all users of the given subscription key, limited to the given rate or a lower one
+   * configured before.
+   */
+  static SubscriptionRateLimiter forKey(String subscriptionKey, double requestsPerSecond) {
+    HashCode keyHash = Hashing.murmur3_128().hashString(subscriptionKey, StandardCharsets.UTF_8);
+    SubscriptionRateLimiter limiter = LIMITERS.computeIfAbsent(
+      keyHash, key -> new SubscriptionRateLimiter(requestsPerSecond));
+    limiter.configure(requestsPerSecond);
+    return limiter;
+  }
+
+  /**
+   * Blocks until a request may be sent.
+   */
+  void acquire() {
+    rateLimiter.acquire();
+  }
+
+  synchronized void onThrottled() {
+    rateLimiter.setRate(Math.max(configuredRate * MIN_RATE_FRACTION, rateLimiter.getRate() / 2));
+  }
+
+  synchronized void onSuccess() {
+    double rate = rateLimiter.getRate();
+    if (rate < configuredRate) {
+      rateLimiter.setRate(Math.min(configuredRate, rate + configuredRate * RECOVERY_FRACTION));
+    }
+  }
+
+  double getRate() {
+    return rateLimiter.getRate();
+  }
+
+  /**
+   * Lowers the configured rate to the given one if it is lower. A rate that was lowered by throttling stays as low.
+   */
+  private synchronized void configure(double requestsPerSecond) {
+    if (requestsPerSecond < configuredRate) {
+      configuredRate = requestsPerSecond;
+      rateLimiter.setRate(Math.min(rateLimiter.getRate(), requestsPerSecond));
+    }
+  }
+}
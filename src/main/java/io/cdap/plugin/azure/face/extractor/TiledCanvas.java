@@ -0,0 +1,163 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several small images laid out side by side on one canvas, so they can be analyzed with a single call. The faces
+ * found on the canvas are mapped back to the image they were found in by the position of their center.
+ */
+final class TiledCanvas {
+  // The detect call returns at most this many faces per image, the largest ones if there are more
+  static final int MAX_DETECTED_FACES = 64;
+  // Keeps the faces of a typical canvas well below the number the detect call returns
+  static final int MAX_TILES = 16;
+  // Keeps the encoded canvas well within the upload limit
+  static final int MAX_CANVAS_EDGE = 2048;
+  // Blank space between the tiles, so a face is never detected across two images
+  private static final int TILE_GAP = 16;
+
+  private final ImageData imageData;
+  private final List<BufferedImage> images;
+  private final int columns;
+  private final int cellWidth;
+  private final int cellHeight;
+
+  private TiledCanvas(ImageData imageData, List<BufferedImage> images, int columns, int cellWidth, int cellHeight) {
+    this.imageData = imageData;
+    this.images = images;
+    this.columns = columns;
+    this.cellWidth = cellWidth;
+    this.cellHeight = cellHeight;
+  }
+
+  /**
+   * Returns the longest edge an image may have to be tiled into a batch of the given size.
+   */
+  static int getMaxTileEdge(int batchSize) {
+    int columns = getColumns(batchSize);
+    return (MAX_CANVAS_EDGE - (columns - 1) * TILE_GAP) / columns;
+  }
+
+  /**
+   * Draws the given images onto a canvas, encoded as a JPEG with the given quality. Every image must fit within the
+   * {@link #getMaxTileEdge maximum tile edge} for the number of images.
+   */
+  static TiledCanvas create(List<BufferedImage> images, float jpegQuality) throws IOException {
+    int columns = getColumns(images.size());
+    int rows = (images.size() + columns - 1) / columns;
+    int cellWidth = 0;
+    int cellHeight = 0;
+    for (BufferedImage image : images) {
+      cellWidth = Math.max(cellWidth, image.getWidth());
+      cellHeight = Math.max(cellHeight, image.getHeight());
+    }
+    BufferedImage canvas = new BufferedImage(columns * (cellWidth + TILE_GAP) - TILE_GAP,
+                                             rows * (cellHeight + TILE_GAP) - TILE_GAP, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = canvas.createGraphics();
+    try {
+      graphics.setColor(Color.WHITE);
+      graphics.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+      for (int i = 0; i < images.size(); i++) {
+        graphics.drawImage(images.get(i), (i % columns) * (cellWidth + TILE_GAP),
+                           (i / columns) * (cellHeight + TILE_GAP), null);
+      }
+    } finally {
+      graphics.dispose();
+    }
+    return new TiledCanvas(ImageData.of(Images.encodeJpeg(canvas, jpegQuality)), images, columns, cellWidth,
+                           cellHeight);
+  }
+
+  ImageData getImageData() {
+    return imageData;
+  }
+
+  /**
+   * Returns whether the detect call may have left out faces of the canvas, because it returned as many faces as it
+   * returns at most. The faces it left out could belong to any of the images.
+   */
+  static boolean isTruncated(FaceAnalysis analysis) {
+    return analysis.getFaces() != null && analysis.getFaces().size() >= MAX_DETECTED_FACES;
+  }
+
+  /**
+   * Splits the analysis of the canvas into one analysis per image, in the order the images were given. Rectangles are
+   * moved to the coordinates of their image. Faces whose center does not lie on an image are dropped.
+   */
+  List<FaceAnalysis> split(FaceAnalysis analysis) {
+    List<List<DetectedFace>> faces = new ArrayList<>();
+    List<List<EmotionResult>> emotions = new ArrayList<>();
+    for (int i = 0; i < images.size(); i++) {
+      faces.add(new ArrayList<>());
+      emotions.add(analysis.getEmotions() == null ? null : new ArrayList<>());
+    }
+    if (analysis.getFaces() != null) {
+      for (DetectedFace face : analysis.getFaces()) {
+        int tile = moveToTile(face.getFaceRectangle());
+        if (tile >= 0) {
+          faces.get(tile).add(face);
+        }
+      }
+    }
+    if (analysis.getEmotions() != null) {
+      for (EmotionResult emotion : analysis.getEmotions()) {
+        int tile = moveToTile(emotion.getFaceRectangle());
+        if (tile >= 0) {
+          emotions.get(tile).add(emotion);
+        }
+      }
+    }
+    List<FaceAnalysis> analyses = new ArrayList<>();
+    for (int i = 0; i < images.size(); i++) {
+      analyses.add(new FaceAnalysis(faces.get(i), emotions.get(i)));
+    }
+    return analyses;
+  }
+
+  /**
+   * Returns the index of the image the center of the rectangle lies on, after moving the rectangle into the
+   * coordinates of that image, or -1 if the center lies on the gaps or the blank part of a cell.
+   */
+  private int moveToTile(FaceRectangle rectangle) {
+    int centerX = rectangle.getLeft() + rectangle.getWidth() / 2;
+    int centerY = rectangle.getTop() + rectangle.getHeight() / 2;
+    int column = centerX / (cellWidth + TILE_GAP);
+    int row = centerY / (cellHeight + TILE_GAP);
+    int tile = row * columns + column;
+    if (centerX < 0 || centerY < 0 || column >= columns || tile >= images.size()) {
+      return -1;
+    }
+    int left = column * (cellWidth + TILE_GAP);
+    int top = row * (cellHeight + TILE_GAP);
+    BufferedImage image = images.get(tile);
+    if (centerX - left >= image.getWidth() || centerY - top >= image.getHeight()) {
+      return -1;
+    }
+    rectangle.translate(-left, -top);
+    return tile;
+  }
+
+  private static int getColumns(int tiles) {
+    return (int) Math.ceil(Math.sqrt(tiles));
+  }
+}
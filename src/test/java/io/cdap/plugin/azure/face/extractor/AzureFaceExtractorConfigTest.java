@@ -16,6 +16,7 @@
 package io.cdap.plugin.azure.face.extractor;
 
 import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.etl.api.Engine;
 import io.cdap.cdap.etl.api.validation.CauseAttributes;
 import io.cdap.cdap.etl.api.validation.ValidationException;
 import io.cdap.cdap.etl.api.validation.ValidationFailure;
@@ -23,7 +24,9 @@ import io.cdap.cdap.etl.mock.validation.MockFailureCollector;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -36,6 +39,7 @@ public class AzureFaceExtractorConfigTest {
                     Schema.Field.of("name", Schema.of(Schema.Type.STRING)),
                     Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
                     Schema.Field.of("nullable", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+                    Schema.Field.of("nullable_id", Schema.nullableOf(Schema.of(Schema.Type.LONG))),
                     Schema.Field.of("decimal", Schema.decimalOf(2)),
                     Schema.Field.of("date", Schema.of(Schema.LogicalType.DATE)),
                     Schema.Field.of("record", Schema.nullableOf(
@@ -142,7 +146,7 @@ public class AzureFaceExtractorConfigTest {
   @Test
   public void testValidateSourceNullableSimpleType() {
     AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
-      .setSourceFieldName("nullable")
+      .setSourceFieldName("nullable_id")
       .build();
     List<String> paramNames = Collections.singletonList(AzureFaceExtractorConfig.SOURCE_FIELD_NAME);
 
@@ -152,6 +156,200 @@ public class AzureFaceExtractorConfigTest {
 
   }
 
+  @Test
+  public void testValidateSourcePathField() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setSourceFieldName("nullable")
+      .build();
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector, SCHEMA);
+    Assert.assertTrue(failureCollector.getValidationFailures().isEmpty());
+  }
+
+  @Test
+  public void testValidateMaxInFlightRequestsNotPositive() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setMaxInFlightRequests(0)
+      .build();
+    List<String> paramNames = Collections.singletonList(AzureFaceExtractorConfig.MAX_IN_FLIGHT_REQUESTS);
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector, SCHEMA);
+    assertValidationFailed(failureCollector, paramNames);
+  }
+
+  @Test
+  public void testValidateInvalidEndpoint() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setFaceEndpoint("ftp://localhost/face/v1.0")
+      .build();
+    List<String> paramNames = Collections.singletonList(AzureFaceExtractorConfig.FACE_ENDPOINT);
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector, SCHEMA);
+    assertValidationFailed(failureCollector, paramNames);
+  }
+
+  @Test
+  public void testValidateAdditionalEndpointKeys() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setAdditionalFaceKeys("https://eastus.api.cognitive.microsoft.com/face/v1.0=key2, " +
+                               "https://westeurope.api.cognitive.microsoft.com/face/v1.0")
+      .setAdditionalEmotionKeys("ftp://localhost/emotion/v1.0=key2")
+      .build();
+    List<String> paramNames = Arrays.asList(AzureFaceExtractorConfig.ADDITIONAL_FACE_KEYS,
+                                            AzureFaceExtractorConfig.ADDITIONAL_EMOTION_KEYS);
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector, SCHEMA);
+    assertValidationFailed(failureCollector, paramNames);
+  }
+
+  @Test
+  public void testValidateHedgePercentileOutOfRange() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setHedgePercentile(100.0d)
+      .setHedgeMaxExtraPercent(0.0d)
+      .build();
+    List<String> paramNames = Arrays.asList(AzureFaceExtractorConfig.HEDGE_PERCENTILE,
+                                            AzureFaceExtractorConfig.HEDGE_MAX_EXTRA_PERCENT);
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector, SCHEMA);
+    assertValidationFailed(failureCollector, paramNames);
+  }
+
+  @Test
+  public void testValidatePreFilterSensitivityOutOfRange() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setPreFilterSensitivity(1.5d)
+      .build();
+    List<String> paramNames = Collections.singletonList(AzureFaceExtractorConfig.PRE_FILTER_SENSITIVITY);
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector, SCHEMA);
+    assertValidationFailed(failureCollector, paramNames);
+  }
+
+  @Test
+  public void testValidateEngine() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setMaxInFlightRequests(4)
+      .setBatchSize(4)
+      .build();
+    List<String> paramNames = Arrays.asList(AzureFaceExtractorConfig.MAX_IN_FLIGHT_REQUESTS,
+                                            AzureFaceExtractorConfig.BATCH_SIZE);
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validateEngine(failureCollector, Engine.MAPREDUCE, false);
+    Assert.assertTrue(failureCollector.getValidationFailures().isEmpty());
+    config.validateEngine(failureCollector, Engine.SPARK, null);
+    assertValidationFailed(failureCollector, paramNames);
+  }
+
+  @Test
+  public void testValidateMicroBatchTimeBudgetEngine() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setMicroBatchTimeBudgetMillis(1000)
+      .build();
+    List<String> paramNames = Collections.singletonList(AzureFaceExtractorConfig.MICRO_BATCH_TIME_BUDGET_MILLIS);
+
+    // A pipeline on Spark may be a streaming pipeline, which is only known once it runs
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validateEngine(failureCollector, Engine.SPARK, null);
+    config.validateEngine(failureCollector, Engine.SPARK, true);
+    Assert.assertTrue(failureCollector.getValidationFailures().isEmpty());
+    config.validateEngine(failureCollector, Engine.MAPREDUCE, null);
+    assertValidationFailed(failureCollector, paramNames);
+
+    failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validateEngine(failureCollector, Engine.SPARK, false);
+    assertValidationFailed(failureCollector, paramNames);
+  }
+
+  @Test
+  public void testValidateMicroBatchTimeBudgetTooSmall() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setMicroBatchTimeBudgetMillis(0)
+      .build();
+    List<String> paramNames = Collections.singletonList(AzureFaceExtractorConfig.MICRO_BATCH_TIME_BUDGET_MILLIS);
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector, SCHEMA);
+    assertValidationFailed(failureCollector, paramNames);
+  }
+
+  @Test
+  public void testValidateCircuitBreaker() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setCircuitBreakerFailureRate(150.0d)
+      .setCircuitBreakerOpenSeconds(0)
+      .build();
+    List<String> paramNames = Arrays.asList(AzureFaceExtractorConfig.CIRCUIT_BREAKER_FAILURE_RATE,
+                                            AzureFaceExtractorConfig.CIRCUIT_BREAKER_OPEN_SECONDS);
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector, SCHEMA);
+    assertValidationFailed(failureCollector, paramNames);
+  }
+
+  @Test
+  public void testValidateRequestsPerSecondNotPositive() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setRequestsPerSecond(0d)
+      .build();
+    List<String> paramNames = Collections.singletonList(AzureFaceExtractorConfig.REQUESTS_PER_SECOND);
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector, SCHEMA);
+    assertValidationFailed(failureCollector, paramNames);
+  }
+
+  @Test
+  public void testValidateEmotionKeyRequiredForEmotionApi() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setEmotionSubscriptionKey(null)
+      .build();
+    List<String> paramNames = Collections.singletonList(AzureFaceExtractorConfig.EMOTION_SUBSCRIPTION_KEY);
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector, SCHEMA);
+    assertValidationFailed(failureCollector, paramNames);
+
+    failureCollector = new MockFailureCollector(MOCK_STAGE);
+    AzureFaceExtractorConfig.builder(config).setEmotionSource("detect").build().validate(failureCollector, SCHEMA);
+    Assert.assertTrue(failureCollector.getValidationFailures().isEmpty());
+  }
+
+  @Test
+  public void testValidateUnsupportedFaceAttribute() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setFaceAttributes("age,hairColor")
+      .build();
+    List<String> paramNames = Collections.singletonList(AzureFaceExtractorConfig.FACE_ATTRIBUTES);
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector, SCHEMA);
+    assertValidationFailed(failureCollector, paramNames);
+  }
+
+  @Test
+  public void testEmptyFaceAttributesMeanRectanglesOnly() {
+    AzureFaceExtractorConfig config = AzureFaceExtractorConfig.builder(VALID_CONFIG)
+      .setFaceAttributes("")
+      .build();
+
+    MockFailureCollector failureCollector = new MockFailureCollector(MOCK_STAGE);
+    config.validate(failureCollector, SCHEMA);
+    Assert.assertTrue(failureCollector.getValidationFailures().isEmpty());
+    Assert.assertTrue(config.getFaceAttributes().isEmpty());
+    // Unlike an empty selection, an unset one requests every attribute
+    Assert.assertEquals(EnumSet.allOf(AzureFaceExtractorConfig.FaceAttribute.class),
+                        AzureFaceExtractorConfig.builder(VALID_CONFIG).setFaceAttributes(null).build()
+                          .getFaceAttributes());
+  }
+
   private static void assertValidationFailed(MockFailureCollector failureCollector, List<String> paramNames) {
     List<ValidationFailure> failureList = failureCollector.getValidationFailures();
     Assert.assertEquals(paramNames.size(), failureList.size());
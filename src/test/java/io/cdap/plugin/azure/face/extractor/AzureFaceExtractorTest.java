@@ -16,13 +16,50 @@
 
 package io.cdap.plugin.azure.face.extractor;
 
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.cdap.etl.api.FailureCollector;
+import io.cdap.cdap.etl.api.InvalidEntry;
 import io.cdap.cdap.etl.api.Transform;
 import io.cdap.cdap.etl.api.validation.ValidationException;
+import io.cdap.cdap.etl.mock.common.MockEmitter;
 import io.cdap.cdap.etl.mock.common.MockPipelineConfigurer;
+import io.cdap.cdap.etl.mock.common.MockStageMetrics;
+import io.cdap.cdap.etl.mock.transform.MockTransformContext;
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.FaceAttribute;
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.ImageOutput;
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.OutputMode;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import javax.imageio.ImageIO;
 
 /**
  * Tests {@link AzureFaceExtractor}.
@@ -30,10 +67,15 @@ import org.junit.Test;
 public class AzureFaceExtractorTest {
   private static final Schema INPUT = Schema.recordOf("input",
                                                       Schema.Field.of("body", Schema.of(Schema.Type.BYTES)));
+  private static final Schema PATH_INPUT = Schema.recordOf("input",
+                                                           Schema.Field.of("path", Schema.of(Schema.Type.STRING)));
   private static final Schema INVALID_INPUT = Schema.recordOf("input",
                                                       Schema.Field.of("a",
                                                                       Schema.arrayOf(Schema.of(Schema.Type.STRING))));
 
+  private static final Set<FaceAttribute> ALL_ATTRIBUTES = EnumSet.allOf(FaceAttribute.class);
+  private static final Supplier<SparkTask> STREAMING_TASK = () -> new SparkTask(1L, true);
+
   // These are some arbitrary image files for testing
   private static String[] imageFiles = new String[] {
     "IMG_4376.JPG",
@@ -41,36 +83,644 @@ public class AzureFaceExtractorTest {
     "C9Y6dlMU0AAF6yh.jpg"
   };
 
-  /*
-  // Before enabling this test, you will need to provide your Face and Emotion API keys in the beginning of the function.
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private MockFaceApiServer server;
+
+  @Before
+  public void startServer() throws IOException {
+    server = MockFaceApiServer.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.close();
+  }
+
   @Test
   public void testDetectingFaces() throws Exception {
-    String facesSubscriptionKey = "<YOUR_KEY_GOES_HERE>";
-    String emotionSubscriptionKey = "<YOUR_KEY_GOES_HERE>";
-    AzureFaceExtractor.Config config = new AzureFaceExtractor.Config("body", true, facesSubscriptionKey, emotionSubscriptionKey);
-    Transform<StructuredRecord, StructuredRecord> transform = new AzureFaceExtractor(config);
-    transform.initialize(null);
-    ClassLoader classLoader = getClass().getClassLoader();
-    MockEmitter<StructuredRecord> emitter = new MockEmitter<>();
+    server.setFacesPerImage(2);
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig().build());
+
+    Assert.assertEquals(2 * imageFiles.length, emitter.getEmitted().size());
+    Assert.assertEquals(imageFiles.length, server.getDetectRequests());
+    Assert.assertEquals(imageFiles.length, server.getRecognizeRequests());
+    for (StructuredRecord record : emitter.getEmitted()) {
+      Assert.assertEquals(24, record.getSchema().getFields().size());
+      Assert.assertNotNull(record.get("image_hash"));
+      Assert.assertNotNull(record.get("face_id"));
+      Assert.assertNotNull(record.get("age"));
+      Assert.assertEquals(0.1d, record.<Double>get("mustache"), 0.0d);
+      Assert.assertEquals(0.125d, record.<Double>get("happiness"), 0.0d);
+      Assert.assertEquals(0.125d, record.<Double>get("surprise"), 0.0d);
+      Assert.assertEquals(-2.5d, record.<Double>get("head_pose_yaw"), 0.0d);
+    }
+  }
+
+  @Test
+  public void testByteBufferInputIsUploadedAsIs() throws Exception {
+    server.setFacesPerImage(1);
+    List<StructuredRecord> inputs = new ArrayList<>();
+    long imageBytes = 0;
+    for (String fileName : imageFiles) {
+      byte[] image = readImage(fileName);
+      imageBytes += image.length;
+      // The image is a region in the middle of a larger array
+      byte[] padded = new byte[image.length + 20];
+      System.arraycopy(image, 0, padded, 10, image.length);
+      ByteBuffer buffer = ByteBuffer.wrap(padded, 10, image.length);
+      inputs.add(StructuredRecord.builder(INPUT).set("body", buffer).build());
+    }
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig().build(), new MockTransformContext(), inputs);
+
+    Assert.assertEquals(imageFiles.length, emitter.getEmitted().size());
+    Assert.assertEquals(2 * imageBytes, server.getBytesReceived());
+    Assert.assertEquals(ImageData.of(readImage(imageFiles[0])).hash(),
+                        emitter.getEmitted().get(0).get("image_hash"));
+  }
 
+  @Test
+  public void testPathInputIsStreamedFromFile() throws Exception {
+    server.setFacesPerImage(1);
+    List<StructuredRecord> inputs = new ArrayList<>();
+    long imageBytes = 0;
     for (String fileName : imageFiles) {
-      URL gzippedFile = classLoader.getResource(fileName);
-      Path source = new Path(gzippedFile.getPath());
-      FileSystem fileSystem = source.getFileSystem(new Configuration());
-      byte[] imageFileData = new byte[(int) fileSystem.getFileStatus(source).getLen()];
-      try (BufferedInputStream input = new BufferedInputStream(fileSystem.open(source))) {
-        input.read(imageFileData);
+      File file = temporaryFolder.newFile(fileName);
+      byte[] image = readImage(fileName);
+      Files.write(image, file);
+      imageBytes += image.length;
+      inputs.add(StructuredRecord.builder(PATH_INPUT).set("path", file.getAbsolutePath()).build());
+    }
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig()
+                                                  .setSourceFieldName("path")
+                                                  .setImageOutput("full")
+                                                  .build(), new MockTransformContext(), inputs);
+
+    Assert.assertEquals(imageFiles.length, emitter.getEmitted().size());
+    Assert.assertEquals(2 * imageBytes, server.getBytesReceived());
+    Assert.assertArrayEquals(readImage(imageFiles[0]), emitter.getEmitted().get(0).get("raw_image_data"));
+  }
+
+  @Test
+  public void testThumbnailsAreCroppedToFaces() throws Exception {
+    server.setFacesPerImage(2);
+    // The mock server reports faces at 10,20 and 110,20, both 80 pixels square
+    BufferedImage image = new BufferedImage(300, 150, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = image.createGraphics();
+    graphics.setColor(Color.WHITE);
+    graphics.fillRect(0, 0, 300, 150);
+    graphics.setColor(Color.RED);
+    graphics.fillRect(10, 20, 80, 80);
+    graphics.setColor(Color.BLUE);
+    graphics.fillRect(110, 20, 80, 80);
+    graphics.dispose();
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", png);
+    List<StructuredRecord> inputs = new ArrayList<>();
+    inputs.add(StructuredRecord.builder(INPUT).set("body", png.toByteArray()).build());
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig().setImageOutput("thumbnail").build(),
+                                                new MockTransformContext(), inputs);
+
+    Assert.assertEquals(2, emitter.getEmitted().size());
+    Color[] faceColors = {Color.RED, Color.BLUE};
+    for (int i = 0; i < faceColors.length; i++) {
+      byte[] bytes = emitter.getEmitted().get(i).get("face_thumbnail");
+      BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(bytes));
+      Assert.assertEquals(80, thumbnail.getWidth());
+      Assert.assertEquals(80, thumbnail.getHeight());
+      // Only the face is in the thumbnail, up to JPEG compression
+      for (int[] point : new int[][] {{2, 2}, {40, 40}, {77, 77}}) {
+        assertColor(faceColors[i], new Color(thumbnail.getRGB(point[0], point[1])));
       }
-      transform.transform(StructuredRecord.builder(INPUT).set("body", imageFileData).build(), emitter);
     }
-    Assert.assertEquals(14, emitter.getEmitted().size());
-    Assert.assertEquals(23, emitter.getEmitted().get(0).getSchema().getFields().size());
+  }
+
+  @Test
+  public void testOversizedImageIsDownscaledAndFacesMappedBack() throws Exception {
+    server.setFacesPerImage(2);
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(2000, 1000, BufferedImage.TYPE_INT_RGB), "png", png);
+    List<StructuredRecord> inputs = new ArrayList<>();
+    inputs.add(StructuredRecord.builder(INPUT).set("body", png.toByteArray()).build());
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig().setMaxImageEdge(500).build(),
+                                                new MockTransformContext(), inputs);
+
+    BufferedImage uploaded = ImageIO.read(new ByteArrayInputStream(server.getLastDetectBody()));
+    Assert.assertEquals(500, uploaded.getWidth());
+    Assert.assertEquals(250, uploaded.getHeight());
+    // The mock server reports faces at 10,20 and 110,20 of the upload, which is a quarter of the source size
+    Assert.assertEquals(2, emitter.getEmitted().size());
+    for (int i = 0; i < 2; i++) {
+      StructuredRecord record = emitter.getEmitted().get(i);
+      Assert.assertEquals(4 * (10 + 100 * i), (int) record.<Integer>get("rectangle_left"));
+      Assert.assertEquals(80, (int) record.<Integer>get("rectangle_top"));
+      Assert.assertEquals(320, (int) record.<Integer>get("rectangle_width"));
+      Assert.assertEquals(320, (int) record.<Integer>get("rectangle_height"));
+      // The emotion rectangles are mapped back too, so they still match the faces
+      Assert.assertEquals(0.125d, record.<Double>get("happiness"), 0.0d);
+    }
+  }
+
+  @Test
+  public void testEmotionsAreMatchedByOverlap() throws Exception {
+    server.setFacesPerImage(4).setEmotionOffset(3);
+    MockTransformContext context = new MockTransformContext();
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig().build(), context);
+
+    Assert.assertEquals(4 * imageFiles.length, emitter.getEmitted().size());
+    for (StructuredRecord record : emitter.getEmitted()) {
+      Assert.assertNotNull(record.get("happiness"));
+    }
+    Assert.assertEquals(0, ((MockStageMetrics) context.getMetrics()).getCount(FaceMetrics.FACES_UNMATCHED));
+  }
+
+  @Test
+  public void testFaceAndEmotionCallsRunConcurrently() throws Exception {
+    server.setFacesPerImage(3).setEmotionOffset(2).setDistinctEmotions(true).setLatency(200, TimeUnit.MILLISECONDS);
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig().build());
+
+    // Images are analyzed one at a time, so only the two calls of the same image overlap
+    Assert.assertEquals(2, server.getMaxConcurrentRequests());
+    Assert.assertEquals(3 * imageFiles.length, emitter.getEmitted().size());
     for (int i = 0; i < emitter.getEmitted().size(); i++) {
-      Assert.assertNotNull(emitter.getEmitted().get(i).get("raw_image_data"));
-      Assert.assertNotNull(emitter.getEmitted().get(i).get("face_id"));
+      // Each face gets the emotion scores of the emotion rectangle at its own position
+      StructuredRecord record = emitter.getEmitted().get(i);
+      int face = i % 3;
+      Assert.assertEquals(10 + 100 * face, (int) record.<Integer>get("rectangle_left"));
+      Assert.assertEquals(30 + face, record.<Double>get("age"), 0.0d);
+      Assert.assertEquals((face + 1) / 10.0d, record.<Double>get("happiness"), 0.0d);
+      Assert.assertEquals(0.125d, record.<Double>get("neutral"), 0.0d);
+    }
+  }
+
+  @Test
+  public void testUnmatchedFacesAreCounted() throws Exception {
+    server.setFacesPerImage(2).setEmotionOffset(60);
+    MockTransformContext context = new MockTransformContext();
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig().build(), context);
+
+    for (StructuredRecord record : emitter.getEmitted()) {
+      Assert.assertNull(record.get("happiness"));
+    }
+    Assert.assertEquals(2 * imageFiles.length,
+                        ((MockStageMetrics) context.getMetrics()).getCount(FaceMetrics.FACES_UNMATCHED));
+  }
+
+  @Test
+  public void testEmotionsFromDetectCall() throws Exception {
+    server.setFacesPerImage(2);
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig()
+                                                  .setEmotionSubscriptionKey(null)
+                                                  .setEmotionSource("detect")
+                                                  .build());
+
+    Assert.assertEquals(2 * imageFiles.length, emitter.getEmitted().size());
+    Assert.assertEquals(imageFiles.length, server.getDetectRequests());
+    Assert.assertEquals(0, server.getRecognizeRequests());
+    for (StructuredRecord record : emitter.getEmitted()) {
+      Assert.assertEquals(0.125d, record.<Double>get("happiness"), 0.0d);
+      Assert.assertEquals(0.125d, record.<Double>get("sadness"), 0.0d);
+    }
+  }
+
+  @Test
+  public void testOnlySelectedAttributesAreRequested() throws Exception {
+    server.setFacesPerImage(2);
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig().setFaceAttributes("faceId,age").build());
+
+    Assert.assertEquals(2 * imageFiles.length, emitter.getEmitted().size());
+    Assert.assertEquals(0, server.getRecognizeRequests());
+    Assert.assertEquals("returnFaceId=true&returnFaceLandmarks=false&returnFaceAttributes=age",
+                        server.getLastDetectQuery());
+    for (StructuredRecord record : emitter.getEmitted()) {
+      Assert.assertEquals(7, record.getSchema().getFields().size());
+      Assert.assertNotNull(record.get("face_id"));
+      Assert.assertNotNull(record.get("age"));
+    }
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    server.setFacesPerImage(3);
+    MockTransformContext context = new MockTransformContext();
+    run(mockServerConfig().build(), context);
+
+    MockStageMetrics metrics = (MockStageMetrics) context.getMetrics();
+    Assert.assertEquals(imageFiles.length, metrics.getCount(FaceMetrics.IMAGES_PROCESSED));
+    Assert.assertEquals(3 * imageFiles.length, metrics.getCount(FaceMetrics.FACES_EMITTED));
+    Assert.assertEquals(0, metrics.getCount(FaceMetrics.IMAGES_WITHOUT_FACES));
+    Assert.assertEquals(imageFiles.length, metrics.getCount("detect.requests"));
+    Assert.assertEquals(imageFiles.length, metrics.getCount("emotion.requests"));
+    Assert.assertEquals(server.getBytesReceived(), metrics.getCount(FaceMetrics.BYTES_UPLOADED));
+  }
+
+  @Test
+  public void testImageModeEmitsImagesWithoutFaces() throws Exception {
+    server.setFacesPerImage(0);
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig().setOutputMode("image").build());
+
+    Assert.assertEquals(imageFiles.length, emitter.getEmitted().size());
+    for (StructuredRecord record : emitter.getEmitted()) {
+      Assert.assertEquals(FaceRecordWriter.STATUS_SUCCESS, record.get("status"));
+      Assert.assertEquals(0, (int) record.<Integer>get("face_count"));
+    }
+  }
+
+  @Test
+  public void testContinueOnErrorReportsFailedImages() throws Exception {
+    server.failNextRequests(1, 400);
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig().setOutputMode("image").build());
+
+    Assert.assertEquals(imageFiles.length, emitter.getEmitted().size());
+    StructuredRecord failed = emitter.getEmitted().get(0);
+    Assert.assertEquals(FaceRecordWriter.STATUS_ERROR, failed.get("status"));
+    Assert.assertNotNull(failed.get("error"));
+    Assert.assertEquals(FaceRecordWriter.STATUS_SUCCESS, emitter.getEmitted().get(1).get("status"));
+    // The input record of the failed image is sent to the error port
+    Assert.assertEquals(1, emitter.getErrors().size());
+    Assert.assertEquals(400, emitter.getErrors().get(0).getErrorCode());
+    Assert.assertNotNull(emitter.getErrors().get(0).getInvalidRecord().get("body"));
+  }
+
+  @Test
+  public void testOpenCircuitRejectsImagesWithoutCalls() throws Exception {
+    server.failNextRequests(Integer.MAX_VALUE, 503);
+    List<StructuredRecord> inputs = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      for (String fileName : imageFiles) {
+        inputs.add(StructuredRecord.builder(INPUT).set("body", readImage(fileName)).build());
+      }
+    }
+    MockTransformContext context = new MockTransformContext();
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig()
+                                                  .setEmotionSource("detect")
+                                                  .setMaxRetries(0)
+                                                  .setCircuitBreakerFailureRate(50.0d)
+                                                  .setCircuitBreakerOpenSeconds(600)
+                                                  .build(), context, inputs);
+
+    // The circuit opens once enough calls failed, and the images after that are rejected without a call
+    MockStageMetrics metrics = (MockStageMetrics) context.getMetrics();
+    Assert.assertEquals(1, metrics.getCount(FaceMetrics.CIRCUIT_OPENED));
+    Assert.assertEquals(inputs.size() - server.getDetectRequests(), metrics.getCount("errors.circuit.open"));
+    Assert.assertTrue(server.getDetectRequests() < inputs.size());
+    Assert.assertEquals(inputs.size(), emitter.getErrors().size());
+    Assert.assertEquals(503, emitter.getErrors().get(inputs.size() - 1).getErrorCode());
+    Assert.assertSame(inputs.get(inputs.size() - 1), emitter.getErrors().get(inputs.size() - 1).getInvalidRecord());
+  }
+
+  @Test
+  public void testImagesOverTimeBudgetAreDeferred() throws Exception {
+    server.setLatency(200, TimeUnit.MILLISECONDS);
+    List<StructuredRecord> inputs = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      for (String fileName : imageFiles) {
+        inputs.add(StructuredRecord.builder(INPUT).set("body", readImage(fileName)).build());
+      }
+    }
+    MockTransformContext context = new MockTransformContext();
+    MockEmitter<StructuredRecord> emitter = run(new AzureFaceExtractor(mockServerConfig()
+                                                                         .setEmotionSource("detect")
+                                                                         .setMicroBatchTimeBudgetMillis(300)
+                                                                         .build(), STREAMING_TASK),
+                                                context, inputs);
+
+    // The images after the budget is used up are not sent to Azure, and go to the error port unchanged
+    MockStageMetrics metrics = (MockStageMetrics) context.getMetrics();
+    long processed = metrics.getCount(FaceMetrics.IMAGES_PROCESSED);
+    Assert.assertTrue(processed >= 1);
+    Assert.assertEquals(processed, server.getDetectRequests());
+    Assert.assertEquals(inputs.size() - processed, metrics.getCount(FaceMetrics.IMAGES_DEFERRED));
+    Assert.assertEquals(inputs.size() - processed, emitter.getErrors().size());
+    Assert.assertEquals(429, emitter.getErrors().get(0).getErrorCode());
+    Assert.assertSame(inputs.get(inputs.size() - 1), emitter.getErrors().get(emitter.getErrors().size() - 1)
+      .getInvalidRecord());
+  }
+
+  @Test
+  public void testTimeBudgetRestartsWithEachTask() throws Exception {
+    server.setLatency(200, TimeUnit.MILLISECONDS);
+    List<StructuredRecord> inputs = new ArrayList<>();
+    for (String fileName : imageFiles) {
+      inputs.add(StructuredRecord.builder(INPUT).set("body", readImage(fileName)).build());
+    }
+    AtomicLong taskAttemptId = new AtomicLong(1L);
+    Transform<StructuredRecord, StructuredRecord> transform =
+      new AzureFaceExtractor(mockServerConfig()
+                               .setEmotionSource("detect")
+                               .setMicroBatchTimeBudgetMillis(300)
+                               .build(), () -> new SparkTask(taskAttemptId.get(), true));
+    MockTransformContext context = new MockTransformContext();
+    MockStageMetrics metrics = (MockStageMetrics) context.getMetrics();
+    transform.initialize(context);
+    MockEmitter<StructuredRecord> emitter = new MockEmitter<>();
+    try {
+      for (StructuredRecord input : inputs) {
+        transform.transform(input, emitter);
+      }
+      long deferred = metrics.getCount(FaceMetrics.IMAGES_DEFERRED);
+      Assert.assertTrue(deferred > 0);
+
+      // The next partition is processed by another task, which gets a budget of its own
+      taskAttemptId.set(2L);
+      transform.transform(inputs.get(0), emitter);
+      Assert.assertEquals(deferred, metrics.getCount(FaceMetrics.IMAGES_DEFERRED));
+    } finally {
+      transform.destroy();
+    }
+    Assert.assertEquals(inputs.size() + 1 - emitter.getErrors().size(), server.getDetectRequests());
+  }
+
+  @Test
+  public void testDeferredImagesAreErrorRecordsAndNotDropped() throws Exception {
+    server.setLatency(150, TimeUnit.MILLISECONDS);
+    List<StructuredRecord> inputs = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      for (String fileName : imageFiles) {
+        inputs.add(StructuredRecord.builder(INPUT).set("body", readImage(fileName)).build());
+      }
+    }
+    MockTransformContext context = new MockTransformContext();
+    // Deferred images go to the error port even when errors fail the pipeline
+    MockEmitter<StructuredRecord> emitter = run(new AzureFaceExtractor(mockServerConfig()
+                                                                         .setOutputMode("image")
+                                                                         .setContinueOnError(false)
+                                                                         .setMicroBatchTimeBudgetMillis(400)
+                                                                         .build(), STREAMING_TASK),
+                                                context, inputs);
+
+    // Every input is either analyzed or sent to the error port unchanged, and none is both
+    Set<StructuredRecord> deferred = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (InvalidEntry<StructuredRecord> error : emitter.getErrors()) {
+      Assert.assertEquals(429, error.getErrorCode());
+      Assert.assertTrue(inputs.contains(error.getInvalidRecord()));
+      Assert.assertTrue(deferred.add(error.getInvalidRecord()));
+    }
+    Assert.assertFalse(deferred.isEmpty());
+    Assert.assertFalse(emitter.getEmitted().isEmpty());
+    Assert.assertEquals(inputs.size(), emitter.getEmitted().size() + deferred.size());
+    MockStageMetrics metrics = (MockStageMetrics) context.getMetrics();
+    Assert.assertEquals(deferred.size(), metrics.getCount(FaceMetrics.IMAGES_DEFERRED));
+    Assert.assertEquals(emitter.getEmitted().size(), metrics.getCount(FaceMetrics.IMAGES_PROCESSED));
+  }
+
+  @Test
+  public void testEngineIsValidatedAtRuntime() throws Exception {
+    AzureFaceExtractorConfig config = mockServerConfig().setMaxInFlightRequests(2).build();
+    new AzureFaceExtractor(config).initialize(new MockTransformContext());
+
+    // The number of images in flight may come from a macro, so it is only known to be unsupported on Spark at runtime
+    Transform<StructuredRecord, StructuredRecord> transform =
+      new AzureFaceExtractor(config, () -> new SparkTask(1L, false));
+    try {
+      transform.initialize(new MockTransformContext());
+      Assert.fail("Expected the unsupported number of images in flight to fail the run.");
+    } catch (ValidationException e) {
+      Assert.assertEquals(1, e.getFailures().size());
+    }
+  }
+
+  @Test
+  public void testErrorsAreCountedByStatus() throws Exception {
+    server.failNextRequests(1, 400);
+    MockTransformContext context = new MockTransformContext();
+    run(mockServerConfig().build(), context);
+
+    MockStageMetrics metrics = (MockStageMetrics) context.getMetrics();
+    Assert.assertEquals(1, metrics.getCount(FaceMetrics.IMAGES_FAILED));
+    Assert.assertEquals(1, metrics.getCount("errors.http.400"));
+    Assert.assertEquals(imageFiles.length - 1, metrics.getCount(FaceMetrics.IMAGES_PROCESSED));
+  }
+
+  @Test(expected = FaceApiException.class)
+  public void testErrorFailsWithoutContinueOnError() throws Exception {
+    server.failNextRequests(1, 400);
+    run(mockServerConfig().setContinueOnError(false).build());
+  }
+
+  @Test
+  public void testTransientErrorsAreRetried() throws Exception {
+    server.failNextRequests(2, 503);
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig()
+                                                  .setContinueOnError(false)
+                                                  .setInitialRetryDelayMillis(1)
+                                                  .build());
+
+    Assert.assertEquals(imageFiles.length, emitter.getEmitted().size());
+    Assert.assertEquals(2 * imageFiles.length + 2, server.getDetectRequests() + server.getRecognizeRequests());
+  }
+
+  @Test
+  public void testPipelinedModeEmitsAllFaces() throws Exception {
+    server.setFacesPerImage(2).setDistinctEmotions(true).setLatency(20, TimeUnit.MILLISECONDS);
+    List<StructuredRecord> inputs = new ArrayList<>();
+    Multiset<String> expectedHashes = HashMultiset.create();
+    for (int i = 0; i < 3; i++) {
+      for (String fileName : imageFiles) {
+        byte[] image = readImage(fileName);
+        inputs.add(StructuredRecord.builder(INPUT).set("body", image).build());
+        expectedHashes.add(ImageData.of(image).hash(), 2);
+      }
+    }
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig().setMaxInFlightRequests(4).build(),
+                                                new MockTransformContext(), inputs);
+
+    // Images complete out of order, but every face of every image is emitted once with its own values
+    Multiset<String> emittedHashes = HashMultiset.create();
+    for (StructuredRecord record : emitter.getEmitted()) {
+      emittedHashes.add(record.get("image_hash"));
+      int face = (record.<Integer>get("rectangle_left") - 10) / 100;
+      Assert.assertEquals(30 + face, record.<Double>get("age"), 0.0d);
+      Assert.assertEquals((face + 1) / 10.0d, record.<Double>get("happiness"), 0.0d);
+    }
+    Assert.assertEquals(expectedHashes, emittedHashes);
+    Assert.assertTrue(emitter.getErrors().isEmpty());
+  }
+
+  @Test
+  public void testPreFilterSkipsImagesWithoutSkin() throws Exception {
+    server.setFacesPerImage(1);
+    List<StructuredRecord> inputs = new ArrayList<>();
+    for (Color background : new Color[] {Color.BLUE, Color.GREEN}) {
+      byte[] image = Images.encodeJpeg(FacePreFilterTest.createImage(background, 0), 0.9f);
+      inputs.add(StructuredRecord.builder(INPUT).set("body", image).build());
+    }
+    byte[] face = Images.encodeJpeg(FacePreFilterTest.createImage(Color.BLUE, 150), 0.9f);
+    inputs.add(StructuredRecord.builder(INPUT).set("body", face).build());
+    MockTransformContext context = new MockTransformContext();
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig()
+                                                  .setOutputMode("image")
+                                                  .setPreFilterSensitivity(0.5d)
+                                                  .build(), context, inputs);
+
+    Assert.assertEquals(1, server.getDetectRequests());
+    Assert.assertEquals(inputs.size(), emitter.getEmitted().size());
+    Assert.assertEquals(0, (int) emitter.getEmitted().get(0).<Integer>get("face_count"));
+    Assert.assertEquals(1, (int) emitter.getEmitted().get(2).<Integer>get("face_count"));
+    MockStageMetrics metrics = (MockStageMetrics) context.getMetrics();
+    Assert.assertEquals(2, metrics.getCount(FaceMetrics.PREFILTER_SKIPPED));
+    Assert.assertEquals(1, metrics.getCount(FaceMetrics.PREFILTER_PASSED));
+  }
+
+  @Test
+  public void testRepeatedImageIsServedFromCache() throws Exception {
+    server.setFacesPerImage(2);
+    byte[] image = readImage(imageFiles[0]);
+    List<StructuredRecord> inputs = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      inputs.add(StructuredRecord.builder(INPUT).set("body", image).build());
+    }
+    MockTransformContext context = new MockTransformContext();
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig().setCacheSize(10).build(), context, inputs);
+
+    Assert.assertEquals(1, server.getDetectRequests());
+    Assert.assertEquals(1, server.getRecognizeRequests());
+    Assert.assertEquals(4, emitter.getEmitted().size());
+    MockStageMetrics metrics = (MockStageMetrics) context.getMetrics();
+    Assert.assertEquals(1, metrics.getCount("cache.hits"));
+    Assert.assertEquals(1, metrics.getCount("cache.misses"));
+    // The second image gets the same faces as the first
+    for (int i = 0; i < 2; i++) {
+      StructuredRecord first = emitter.getEmitted().get(i);
+      StructuredRecord repeated = emitter.getEmitted().get(i + 2);
+      Assert.assertEquals(first.<String>get("face_id"), repeated.get("face_id"));
+      Assert.assertEquals(first.<Integer>get("rectangle_left"), repeated.get("rectangle_left"));
+      Assert.assertEquals(first.<String>get("image_hash"), repeated.get("image_hash"));
+    }
+  }
+
+  @Test
+  public void testRerunEmitsStoredResults() throws Exception {
+    server.setFacesPerImage(2);
+    AzureFaceExtractorConfig config = mockServerConfig()
+      .setResultStorePath(temporaryFolder.newFolder().getAbsolutePath())
+      .build();
+    run(config);
+    MockTransformContext context = new MockTransformContext();
+    MockEmitter<StructuredRecord> emitter = run(config, context);
+
+    Assert.assertEquals(imageFiles.length, server.getDetectRequests());
+    Assert.assertEquals(2 * imageFiles.length, emitter.getEmitted().size());
+    Assert.assertEquals(imageFiles.length, ((MockStageMetrics) context.getMetrics()).getCount("store.hits"));
+  }
+
+  @Test
+  public void testSmallImagesAreBatchedIntoOneCall() throws Exception {
+    server.setFacesPerImage(3);
+    List<StructuredRecord> inputs = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      ByteArrayOutputStream thumbnail = new ByteArrayOutputStream();
+      ImageIO.write(new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB), "jpg", thumbnail);
+      inputs.add(StructuredRecord.builder(INPUT).set("body", thumbnail.toByteArray()).build());
+    }
+    MockTransformContext context = new MockTransformContext();
+    // The batch is not full, so it is analyzed when the stage finishes
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig()
+                                                  .setOutputMode("image")
+                                                  .setBatchSize(8)
+                                                  .build(), context, inputs);
+
+    Assert.assertEquals(1, server.getDetectRequests());
+    Assert.assertEquals(1, server.getRecognizeRequests());
+    Assert.assertEquals(4, emitter.getEmitted().size());
+    // The faces of the mock server are laid out side by side, so they are found on the first two tiles
+    int[] faceCounts = {2, 1, 0, 0};
+    for (int i = 0; i < faceCounts.length; i++) {
+      StructuredRecord record = emitter.getEmitted().get(i);
+      Assert.assertEquals(faceCounts[i], (int) record.<Integer>get("face_count"));
+      for (StructuredRecord face : record.<List<StructuredRecord>>get("faces")) {
+        Assert.assertNotNull(face.get("happiness"));
+      }
     }
+    Assert.assertEquals(4, ((MockStageMetrics) context.getMetrics()).getCount(FaceMetrics.BATCH_IMAGES));
+  }
+
+  @Test
+  public void testCanvasWithTooManyFacesIsAnalyzedPerImage() throws Exception {
+    server.setFacesPerImage(TiledCanvas.MAX_DETECTED_FACES);
+    List<StructuredRecord> inputs = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      ByteArrayOutputStream thumbnail = new ByteArrayOutputStream();
+      ImageIO.write(new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB), "jpg", thumbnail);
+      inputs.add(StructuredRecord.builder(INPUT).set("body", thumbnail.toByteArray()).build());
+    }
+    MockTransformContext context = new MockTransformContext();
+    MockEmitter<StructuredRecord> emitter = run(mockServerConfig()
+                                                  .setOutputMode("image")
+                                                  .setBatchSize(4)
+                                                  .build(), context, inputs);
+
+    // The canvas may have lost faces to the limit of the detect call, so each image is analyzed again on its own
+    Assert.assertEquals(5, server.getDetectRequests());
+    Assert.assertEquals(4, emitter.getEmitted().size());
+    for (StructuredRecord record : emitter.getEmitted()) {
+      Assert.assertEquals(TiledCanvas.MAX_DETECTED_FACES, (int) record.<Integer>get("face_count"));
+    }
+    MockStageMetrics metrics = (MockStageMetrics) context.getMetrics();
+    Assert.assertEquals(4, metrics.getCount(FaceMetrics.BATCH_TRUNCATED));
+    Assert.assertEquals(0, metrics.getCount(FaceMetrics.BATCH_IMAGES));
+  }
+
+  @Test
+  public void testImageHashIsOutputByDefault() throws Exception {
+    AzureFaceExtractorConfig config = new AzureFaceExtractorConfig("body", true, "ANYTHING", "ANYTHING");
+    Transform<StructuredRecord, StructuredRecord> transform = new AzureFaceExtractor(config);
+    MockPipelineConfigurer mockPipelineConfigurer = new MockPipelineConfigurer(INPUT);
+    transform.configurePipeline(mockPipelineConfigurer);
+
+    Schema outputSchema = mockPipelineConfigurer.getOutputSchema();
+    Assert.assertNotNull(outputSchema.getField("image_hash"));
+    Assert.assertNull(outputSchema.getField("raw_image_data"));
+  }
+
+  @Test
+  public void testImageRecordCountsDetectedFaces() throws Exception {
+    FaceRecordWriter writer = new FaceRecordWriter(ImageOutput.NONE, OutputMode.IMAGE, ALL_ATTRIBUTES);
+    StructuredRecord input = StructuredRecord.builder(INPUT).set("body", readImage(imageFiles[0])).build();
+    List<DetectedFace> faces = Arrays.asList(new DetectedFace(null, new FaceRectangle(0, 0, 10, 10), null),
+                                             new DetectedFace(null, new FaceRectangle(20, 0, 10, 10), null));
+    AnalyzedImage analyzed = AnalyzedImage.success(input, ImageData.of(readImage(imageFiles[0])), null,
+                                                   new FaceAnalysis(faces, null), 10);
+
+    // A face whose record could not be created is still counted
+    StructuredRecord faceRecord = writer.createFaceRecord(analyzed, null, faces.get(0), null);
+    StructuredRecord record = writer.createImageRecord(analyzed, Collections.singletonList(faceRecord));
+    Assert.assertEquals(2, (int) record.<Integer>get("face_count"));
+    Assert.assertEquals(1, record.<List<StructuredRecord>>get("faces").size());
+  }
+
+  @Test
+  public void testImageOutputModes() {
+    Assert.assertNotNull(FaceRecordWriter.createOutputSchema(ImageOutput.FULL, OutputMode.FACE, ALL_ATTRIBUTES)
+                           .getField("raw_image_data"));
+    Assert.assertNotNull(FaceRecordWriter.createOutputSchema(ImageOutput.THUMBNAIL, OutputMode.FACE, ALL_ATTRIBUTES)
+                           .getField("face_thumbnail"));
+    Assert.assertEquals(23, FaceRecordWriter.createOutputSchema(ImageOutput.NONE, OutputMode.FACE, ALL_ATTRIBUTES)
+      .getFields().size());
+  }
+
+  @Test
+  public void testOutputSchemaIsPrunedToAttributes() {
+    Schema outputSchema = FaceRecordWriter.createOutputSchema(ImageOutput.NONE, OutputMode.FACE,
+                                                              EnumSet.of(FaceAttribute.AGE, FaceAttribute.HEAD_POSE));
+    Assert.assertEquals(8, outputSchema.getFields().size());
+    Assert.assertNotNull(outputSchema.getField("rectangle_left"));
+    Assert.assertNotNull(outputSchema.getField("age"));
+    Assert.assertNotNull(outputSchema.getField("head_pose_yaw"));
+    Assert.assertNull(outputSchema.getField("face_id"));
+    Assert.assertNull(outputSchema.getField("happiness"));
+  }
+
+  @Test
+  public void testImageModeNestsFaces() {
+    Schema outputSchema = FaceRecordWriter.createOutputSchema(ImageOutput.THUMBNAIL, OutputMode.IMAGE, ALL_ATTRIBUTES);
+    Assert.assertNotNull(outputSchema.getField("face_count"));
+    Assert.assertNotNull(outputSchema.getField("status"));
+    Schema faceSchema = outputSchema.getField("faces").getSchema().getComponentSchema();
+    Assert.assertNotNull(faceSchema.getField("face_thumbnail"));
+    Assert.assertNull(outputSchema.getField("face_thumbnail"));
   }
-  */
 
   @Test(expected = ValidationException.class)
   public void testFieldNotInInputSchema() throws Exception {
@@ -88,4 +738,62 @@ public class AzureFaceExtractorTest {
     FailureCollector failureCollector = mockPipelineConfigurer.getStageConfigurer().getFailureCollector();
     failureCollector.getOrThrowException();
   }
+
+  private AzureFaceExtractorConfig.Builder mockServerConfig() {
+    return AzureFaceExtractorConfig.builder()
+      .setSourceFieldName("body")
+      .setContinueOnError(true)
+      .setFacesSubscriptionKey("ANYTHING")
+      .setEmotionSubscriptionKey("ANYTHING")
+      .setFaceEndpoint(server.getFaceEndpoint())
+      .setEmotionEndpoint(server.getEmotionEndpoint());
+  }
+
+  /**
+   * Runs all test images through a transform configured with the given config and returns what it emitted.
+   */
+  private static MockEmitter<StructuredRecord> run(AzureFaceExtractorConfig config) throws Exception {
+    return run(config, new MockTransformContext());
+  }
+
+  private static MockEmitter<StructuredRecord> run(AzureFaceExtractorConfig config,
+                                                   MockTransformContext context) throws Exception {
+    List<StructuredRecord> inputs = new ArrayList<>();
+    for (String fileName : imageFiles) {
+      inputs.add(StructuredRecord.builder(INPUT).set("body", readImage(fileName)).build());
+    }
+    return run(config, context, inputs);
+  }
+
+  private static MockEmitter<StructuredRecord> run(AzureFaceExtractorConfig config, MockTransformContext context,
+                                                   List<StructuredRecord> inputs) throws Exception {
+    return run(new AzureFaceExtractor(config), context, inputs);
+  }
+
+  private static MockEmitter<StructuredRecord> run(Transform<StructuredRecord, StructuredRecord> transform,
+                                                   MockTransformContext context,
+                                                   List<StructuredRecord> inputs) throws Exception {
+    transform.initialize(context);
+    MockEmitter<StructuredRecord> emitter = new MockEmitter<>();
+    try {
+      for (StructuredRecord input : inputs) {
+        transform.transform(input, emitter);
+      }
+    } finally {
+      transform.destroy();
+    }
+    return emitter;
+  }
+
+  private static void assertColor(Color expected, Color actual) {
+    Assert.assertEquals(expected.getRed(), actual.getRed(), 16);
+    Assert.assertEquals(expected.getGreen(), actual.getGreen(), 16);
+    Assert.assertEquals(expected.getBlue(), actual.getBlue(), 16);
+  }
+
+  private static byte[] readImage(String fileName) throws IOException {
+    try (InputStream input = AzureFaceExtractorTest.class.getClassLoader().getResourceAsStream(fileName)) {
+      return ByteStreams.toByteArray(input);
+    }
+  }
 }
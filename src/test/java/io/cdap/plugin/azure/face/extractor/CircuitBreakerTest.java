@@ -0,0 +1,142 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpensAtFailureRate() {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(50, 60, 60000);
+    for (int i = 0; i < 5; i++) {
+      circuitBreaker.onSuccess(acquire(circuitBreaker));
+    }
+    for (int i = 0; i < 4; i++) {
+      Assert.assertFalse(circuitBreaker.onFailure(acquire(circuitBreaker)));
+    }
+    // Half of the last ten calls failed
+    Assert.assertTrue(circuitBreaker.onFailure(acquire(circuitBreaker)));
+    Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    Assert.assertEquals(CircuitBreaker.REJECTED, circuitBreaker.tryAcquire());
+  }
+
+  @Test
+  public void testProbeClosesOrReopensCircuit() {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(100, 0, 60000);
+    openCircuit(circuitBreaker);
+
+    // Only one probe is let through once the open time has passed
+    long probe = acquire(circuitBreaker);
+    Assert.assertEquals(CircuitBreaker.REJECTED, circuitBreaker.tryAcquire());
+    Assert.assertTrue(circuitBreaker.onFailure(probe));
+    Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+    circuitBreaker.onSuccess(acquire(circuitBreaker));
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    acquire(circuitBreaker);
+  }
+
+  @Test
+  public void testStaleCompletionsDoNotChangeHalfOpenCircuit() {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(100, 0, 60000);
+    // A call that was in flight when the circuit opened
+    long stale = acquire(circuitBreaker);
+    openCircuit(circuitBreaker);
+
+    long probe = acquire(circuitBreaker);
+    Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    circuitBreaker.onSuccess(stale);
+    Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    Assert.assertFalse(circuitBreaker.onFailure(stale));
+    Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+
+    circuitBreaker.onSuccess(probe);
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    // The stale call does not count against the new window either
+    Assert.assertFalse(circuitBreaker.onFailure(stale));
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testProbeIsReplacedOnceItTimesOut() {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(100, 0, 0);
+    openCircuit(circuitBreaker);
+
+    long timedOutProbe = acquire(circuitBreaker);
+    long probe = acquire(circuitBreaker);
+    Assert.assertTrue(probe != timedOutProbe);
+    // Only the probe that replaced it decides the state
+    circuitBreaker.onSuccess(timedOutProbe);
+    Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    Assert.assertTrue(circuitBreaker.onFailure(probe));
+    Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testOnlyServiceFailuresCount() {
+    Assert.assertTrue(CircuitBreaker.isServiceFailure(new FaceApiException(503, "Unavailable")));
+    Assert.assertTrue(CircuitBreaker.isServiceFailure(new FaceApiException(429, "Throttled")));
+    Assert.assertTrue(CircuitBreaker.isServiceFailure(new SocketTimeoutException()));
+    Assert.assertFalse(CircuitBreaker.isServiceFailure(new FaceApiException(400, "InvalidImage")));
+    Assert.assertFalse(CircuitBreaker.isServiceFailure(new IllegalArgumentException()));
+    Assert.assertTrue(CircuitBreaker.isServiceFailure(new IOException("Connection reset")));
+    Assert.assertTrue(CircuitBreaker.isServiceFailure(new ConnectTimeoutException()));
+  }
+
+  @Test
+  public void testInterruptedCallsAreNotRecorded() {
+    Assert.assertFalse(CircuitBreaker.isServiceFailure(new InterruptedIOException()));
+    Assert.assertFalse(CircuitBreaker.isServiceFailure(new CancellationException()));
+    Assert.assertTrue(CircuitBreaker.isAbandoned(new InterruptedIOException()));
+    Assert.assertTrue(CircuitBreaker.isAbandoned(new InterruptedException()));
+    Assert.assertFalse(CircuitBreaker.isAbandoned(new SocketTimeoutException()));
+
+    // An interrupted probe neither closes nor opens the circuit, and the next call probes instead
+    CircuitBreaker circuitBreaker = new CircuitBreaker(50, 0, TimeUnit.HOURS.toMillis(1));
+    openCircuit(circuitBreaker);
+    long probe = acquire(circuitBreaker);
+    Assert.assertEquals(CircuitBreaker.REJECTED, circuitBreaker.tryAcquire());
+    circuitBreaker.onAbandoned(probe);
+    Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    circuitBreaker.onSuccess(acquire(circuitBreaker));
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+
+  private static long acquire(CircuitBreaker circuitBreaker) {
+    long permit = circuitBreaker.tryAcquire();
+    Assert.assertTrue(permit != CircuitBreaker.REJECTED);
+    return permit;
+  }
+
+  private static void openCircuit(CircuitBreaker circuitBreaker) {
+    for (int i = 0; i < 10; i++) {
+      circuitBreaker.onFailure(acquire(circuitBreaker));
+    }
+    Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.azure.face.extractor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests {@link EmotionMatcher}.
+ */
+public class EmotionMatcherTest {
+
+  @Test
+  public void testSlightlyOffsetRectanglesMatch() {
+    EmotionResult emotion = emotion(101, 49, 80, 80);
+    EmotionMatcher matcher = new EmotionMatcher(Collections.singletonList(emotion), 0.5d);
+
+    Assert.assertSame(emotion, matcher.match(new FaceRectangle(100, 50, 80, 80)));
+  }
+
+  @Test
+  public void testDistantRectanglesDoNotMatch() {
+    EmotionMatcher matcher = new EmotionMatcher(Collections.singletonList(emotion(300, 300, 80, 80)), 0.5d);
+
+    Assert.assertNull(matcher.match(new FaceRectangle(100, 50, 80, 80)));
+  }
+
+  @Test
+  public void testEachEmotionIsMatchedOnce() {
+    EmotionMatcher matcher = new EmotionMatcher(Collections.singletonList(emotion(100, 50, 80, 80)), 0.5d);
+
+    Assert.assertNotNull(matcher.match(new FaceRectangle(100, 50, 80, 80)));
+    Assert.assertNull(matcher.match(new FaceRectangle(102, 52, 80, 80)));
+  }
+
+  @Test
+  public void testBestOverlapWins() {
+    EmotionResult near = emotion(104, 50, 80, 80);
+    EmotionResult nearer = emotion(101, 50, 80, 80);
+    EmotionMatcher matcher = new EmotionMatcher(Arrays.asList(near, nearer), 0.5d);
+
+    Assert.assertSame(nearer, matcher.match(new FaceRectangle(100, 50, 80, 80)));
+  }
+
+  @Test
+  public void testCrowdedImage() {
+    // An 8x8 grid of 64 faces, the service maximum, with emotions listed in reverse order and shifted by 2 pixels
+    List<EmotionResult> emotions = new ArrayList<>();
+    for (int i = 63; i >= 0; i--) {
+      emotions.add(emotion(2 + (i % 8) * 50, 2 + (i / 8) * 50, 40, 40));
+    }
+    EmotionMatcher matcher = new EmotionMatcher(emotions, 0.5d);
+    for (int i = 0; i < 64; i++) {
+      EmotionResult emotion = matcher.match(new FaceRectangle((i % 8) * 50, (i / 8) * 50, 40, 40));
+      Assert.assertNotNull(emotion);
+      Assert.assertEquals(2 + (i % 8) * 50, emotion.getFaceRectangle().getLeft());
+      Assert.assertEquals(2 + (i / 8) * 50, emotion.getFaceRectangle().getTop());
+    }
+  }
+
+  @Test
+  public void testIntersectionOverUnion() {
+    FaceRectangle rectangle = new FaceRectangle(0, 0, 10, 10);
+    Assert.assertEquals(1.0d, EmotionMatcher.intersectionOverUnion(rectangle, new FaceRectangle(0, 0, 10, 10)), 0.0d);
+    Assert.assertEquals(50.0d / 150.0d,
+                        EmotionMatcher.intersectionOverUnion(rectangle, new FaceRectangle(5, 0, 10, 10)), 1e-9d);
+    Assert.assertEquals(0.0d, EmotionMatcher.intersectionOverUnion(rectangle, new FaceRectangle(10, 0, 10, 10)), 0.0d);
+  }
+
+  private static EmotionResult emotion(int left, int top, int width, int height) {
+    return new EmotionResult(new FaceRectangle(left, top, width, height), Collections.singletonMap("happiness", 1.0d));
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests {@link EndpointBalancer}.
+ */
+public class EndpointBalancerTest {
+  // Endpoints keep their state, so each test gets new ones
+  private final EndpointBalancer.Endpoint east =
+    new EndpointBalancer.Endpoint(URI.create("https://eastus.api.cognitive.microsoft.com/face/v1.0"), "east", null);
+  private final EndpointBalancer.Endpoint west =
+    new EndpointBalancer.Endpoint(URI.create("https://westus.api.cognitive.microsoft.com/face/v1.0"), "west", null);
+
+  @Test
+  public void testLeastOutstandingEndpointIsChosen() {
+    EndpointBalancer balancer = new EndpointBalancer(Arrays.asList(east, west));
+    EndpointBalancer.Endpoint first = balancer.acquire();
+    EndpointBalancer.Endpoint second = balancer.acquire();
+    Assert.assertNotSame(first, second);
+
+    balancer.release(first);
+    Assert.assertSame(first, balancer.acquire());
+  }
+
+  @Test
+  public void testFailedEndpointIsEjectedUntilItRecovers() {
+    EndpointBalancer balancer = new EndpointBalancer(Arrays.asList(east, west));
+    Assert.assertTrue(balancer.onFailure(east, 60000L));
+    Assert.assertTrue(balancer.canFailOver(Collections.singleton(east)));
+    for (int i = 0; i < 4; i++) {
+      EndpointBalancer.Endpoint endpoint = balancer.acquire();
+      Assert.assertSame(west, endpoint);
+      balancer.release(endpoint);
+    }
+
+    // With every endpoint ejected, calls go to the one that recovers first
+    balancer.onFailure(west, 120000L);
+    Assert.assertFalse(balancer.canFailOver(Collections.emptySet()));
+    EndpointBalancer.Endpoint endpoint = balancer.acquire();
+    Assert.assertSame(east, endpoint);
+    balancer.release(endpoint);
+
+    balancer.onSuccess(west);
+    Assert.assertTrue(balancer.canFailOver(Collections.singleton(east)));
+    Assert.assertSame(west, balancer.acquire());
+  }
+
+  @Test
+  public void testRetriesOnlyFailOverToEndpointsNotTriedYet() {
+    EndpointBalancer balancer = new EndpointBalancer(Arrays.asList(east, west));
+    Assert.assertTrue(balancer.canFailOver(Collections.emptySet()));
+    // A healthy endpoint that the call already tried does not take its retry without waiting
+    Assert.assertTrue(balancer.canFailOver(Collections.singleton(east)));
+    Assert.assertFalse(balancer.canFailOver(Arrays.asList(east, west)));
+  }
+
+  @Test
+  public void testLoneEndpointIsNotEjected() {
+    EndpointBalancer balancer = new EndpointBalancer(Collections.singletonList(east));
+    Assert.assertFalse(balancer.onFailure(east, 60000L));
+    // Retries wait for the endpoint instead of failing over
+    Assert.assertFalse(balancer.canFailOver(Collections.singleton(east)));
+    Assert.assertSame(east, balancer.acquire());
+  }
+}
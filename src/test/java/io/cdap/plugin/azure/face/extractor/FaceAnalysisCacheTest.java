@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link FaceAnalysisCache}.
+ */
+public class FaceAnalysisCacheTest {
+  // Cache keys are image hashes, which are opaque strings to the cache
+  private static final String IMAGE = "a1b2c3";
+  private static final String OTHER_IMAGE = "d4e5f6";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testDuplicateImageIsLoadedOnce() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    try (FaceAnalysisCache cache = new FaceAnalysisCache(10, 60, null, null)) {
+      FaceAnalysis first = cache.get(IMAGE, () -> load(loads));
+      FaceAnalysis second = cache.get(new String(IMAGE), () -> load(loads));
+
+      Assert.assertSame(first, second);
+      Assert.assertEquals(1, loads.get());
+      Assert.assertEquals(1, cache.getHitCount());
+      Assert.assertEquals(1, cache.getMissCount());
+    }
+  }
+
+  @Test
+  public void testEvictedResultIsReadFromSpillDirectory() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    File spillParent = temporaryFolder.newFolder();
+    try (FaceAnalysisCache cache = new FaceAnalysisCache(1, 60, spillParent, null)) {
+      cache.get(IMAGE, () -> load(loads));
+      // Evicts the first image, which is spilled to disk
+      cache.get(OTHER_IMAGE, () -> load(loads));
+      FaceAnalysis reloaded = cache.get(IMAGE, () -> load(loads));
+
+      Assert.assertEquals(2, loads.get());
+      Assert.assertEquals(1, cache.getHitCount());
+      Assert.assertEquals(0, reloaded.getFaces().size());
+    }
+    Assert.assertEquals(0, spillParent.list().length);
+  }
+
+  @Test
+  public void testSpilledResultExpiresFromWhenItWasLoaded() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    try (FaceAnalysisCache cache = new FaceAnalysisCache(1, 1, temporaryFolder.newFolder(), null)) {
+      cache.get(IMAGE, () -> load(loads));
+      TimeUnit.MILLISECONDS.sleep(600);
+      // Evicts the first image, which is spilled to disk well within its time to live
+      cache.get(OTHER_IMAGE, () -> load(loads));
+      TimeUnit.MILLISECONDS.sleep(600);
+      cache.get(IMAGE, () -> load(loads));
+
+      Assert.assertEquals(3, loads.get());
+      Assert.assertEquals(0, cache.getHitCount());
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testLoaderExceptionIsPropagated() throws Exception {
+    try (FaceAnalysisCache cache = new FaceAnalysisCache(10, 60, null, null)) {
+      cache.get(IMAGE, () -> {
+        throw new IllegalStateException("Azure is unavailable");
+      });
+    }
+  }
+
+  private static FaceAnalysis load(AtomicInteger loads) {
+    loads.incrementAndGet();
+    return new FaceAnalysis(Collections.emptyList(), Collections.emptyList());
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.azure.face.extractor;
+
+import io.cdap.cdap.etl.mock.common.MockStageMetrics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link FaceApiClient} against a {@link MockFaceApiServer}.
+ */
+public class FaceApiClientTest {
+  private static final ImageData IMAGE = ImageData.of(new byte[] {1, 2, 3, 4});
+
+  private MockFaceApiServer server;
+  private MockStageMetrics metrics;
+
+  @Before
+  public void startServer() throws Exception {
+    server = MockFaceApiServer.start();
+    metrics = new MockStageMetrics("test");
+  }
+
+  @After
+  public void stopServer() {
+    server.close();
+  }
+
+  @Test
+  public void testRetriesThrottledRequests() throws Exception {
+    server.setFacesPerImage(2).failNextRequests(2, 429);
+    try (FaceApiClient client = createClient(new RetryPolicy(3, 1, 10), null)) {
+      List<DetectedFace> faces = client.detect(IMAGE);
+      Assert.assertEquals(2, faces.size());
+    }
+    Assert.assertEquals(3, server.getDetectRequests());
+    Assert.assertEquals(3, metrics.getCount("detect.requests"));
+    Assert.assertEquals(2, metrics.getCount("detect.retries"));
+    Assert.assertEquals(2, metrics.getCount("detect.status.429"));
+    Assert.assertEquals(3 * IMAGE.getLength(), metrics.getCount(FaceMetrics.BYTES_UPLOADED));
+    // There is no other endpoint to take the retries, so the only one is not ejected
+    Assert.assertEquals(0, metrics.getCount("detect.ejections"));
+  }
+
+  @Test
+  public void testGivesUpAfterMaxRetries() throws Exception {
+    server.failNextRequests(3, 503);
+    try (FaceApiClient client = createClient(new RetryPolicy(2, 1, 10), null)) {
+      client.detect(IMAGE);
+      Assert.fail("Expected the call to fail once the retries are used up.");
+    } catch (FaceApiException e) {
+      Assert.assertEquals(503, e.getStatusCode());
+    }
+    Assert.assertEquals(3, server.getDetectRequests());
+  }
+
+  @Test
+  public void testClientErrorsAreNotRetried() throws Exception {
+    server.failNextRequests(1, 400);
+    try (FaceApiClient client = createClient(new RetryPolicy(3, 1, 10), null)) {
+      client.detect(IMAGE);
+      Assert.fail("Expected the call to fail.");
+    } catch (FaceApiException e) {
+      Assert.assertEquals(400, e.getStatusCode());
+    }
+    Assert.assertEquals(1, server.getDetectRequests());
+  }
+
+  @Test
+  public void testRetryAfterIsHonored() throws Exception {
+    server.failNextRequests(1, 429).setRetryAfterSeconds(1);
+    long start = System.nanoTime();
+    try (FaceApiClient client = createClient(new RetryPolicy(1, 1, 10), null)) {
+      client.recognizeEmotions(IMAGE);
+    }
+    Assert.assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+    Assert.assertEquals(2, server.getRecognizeRequests());
+  }
+
+  @Test
+  public void testUnresponsiveServerTimesOut() throws Exception {
+    server.setLatency(1, TimeUnit.HOURS);
+    long start = System.nanoTime();
+    try (FaceApiClient client = FaceApiClient.builder()
+      .setFaceEndpoint(server.getFaceEndpoint(), "key")
+      .setTimeouts(1000, 200)
+      .setMetrics(new FaceMetrics(metrics))
+      .build()) {
+      client.detect(IMAGE);
+      Assert.fail("Expected the call to time out.");
+    } catch (SocketTimeoutException e) {
+      // expected
+    }
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+  }
+
+  @Test
+  public void testTimedOutRequestsAreRetriedAndCounted() throws Exception {
+    server.setLatency(1, TimeUnit.HOURS);
+    try (FaceApiClient client = FaceApiClient.builder()
+      .setFaceEndpoint(server.getFaceEndpoint(), "key")
+      .setRetryPolicy(new RetryPolicy(2, 1, 10))
+      .setTimeouts(1000, 200)
+      .setMetrics(new FaceMetrics(metrics))
+      .build()) {
+      client.detect(IMAGE);
+      Assert.fail("Expected the call to time out once the retries are used up.");
+    } catch (SocketTimeoutException e) {
+      // expected
+    }
+    Assert.assertEquals(3, server.getDetectRequests());
+    Assert.assertEquals(3, metrics.getCount("detect.requests"));
+    Assert.assertEquals(2, metrics.getCount("detect.retries"));
+    Assert.assertEquals(3, metrics.getCount("detect.errors.timeout"));
+    Assert.assertEquals(3 * IMAGE.getLength(), metrics.getCount(FaceMetrics.BYTES_UPLOADED));
+  }
+
+  @Test
+  public void testRefusedConnectionsAreRetriedAndCounted() throws Exception {
+    MockFaceApiServer closedServer = MockFaceApiServer.start();
+    closedServer.close();
+    try (FaceApiClient client = FaceApiClient.builder()
+      .setFaceEndpoint(closedServer.getFaceEndpoint(), "key")
+      .setRetryPolicy(new RetryPolicy(1, 1, 10))
+      .setMetrics(new FaceMetrics(metrics))
+      .build()) {
+      client.detect(IMAGE);
+      Assert.fail("Expected the call to fail once the retries are used up.");
+    } catch (FaceApiException e) {
+      Assert.fail("Expected a network error rather than an HTTP status.");
+    } catch (IOException e) {
+      // expected
+    }
+    Assert.assertEquals(2, metrics.getCount("detect.requests"));
+    Assert.assertEquals(1, metrics.getCount("detect.retries"));
+    Assert.assertEquals(2, metrics.getCount("detect.errors.io"));
+  }
+
+  @Test
+  public void testMetricsAreOptional() throws Exception {
+    try (FaceApiClient client = FaceApiClient.builder().setFaceEndpoint(server.getFaceEndpoint(), "key").build()) {
+      Assert.assertEquals(1, client.detect(IMAGE).size());
+    }
+  }
+
+  @Test
+  public void testThrottledEndpointIsEjected() throws Exception {
+    server.failNextRequests(1, 429).setRetryAfterSeconds(30);
+    long start = System.nanoTime();
+    try (MockFaceApiServer otherServer = MockFaceApiServer.start();
+         FaceApiClient client = FaceApiClient.builder()
+           .setFaceEndpoint(server.getFaceEndpoint(), "key")
+           .addFaceEndpoint(otherServer.getFaceEndpoint(), "otherKey")
+           .setRetryPolicy(new RetryPolicy(1, 10000, 30000))
+           .setMetrics(new FaceMetrics(metrics))
+           .build()) {
+      for (int i = 0; i < 4; i++) {
+        Assert.assertEquals(1, client.detect(IMAGE).size());
+      }
+      // The throttled call is retried on the other endpoint right away, which takes all calls after it
+      Assert.assertEquals(1, server.getDetectRequests());
+      Assert.assertEquals(4, otherServer.getDetectRequests());
+    }
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+    Assert.assertEquals(1, metrics.getCount("detect.retries"));
+    Assert.assertEquals(1, metrics.getCount("detect.ejections"));
+  }
+
+  @Test
+  public void testRetriesBackOffOnceEveryEndpointWasTried() throws Exception {
+    server.failNextRequests(1, 503).setRetryAfterSeconds(1);
+    long start = System.nanoTime();
+    try (MockFaceApiServer otherServer = MockFaceApiServer.start();
+         FaceApiClient client = FaceApiClient.builder()
+           .setFaceEndpoint(server.getFaceEndpoint(), "key")
+           .addFaceEndpoint(otherServer.getFaceEndpoint(), "otherKey")
+           .setRetryPolicy(new RetryPolicy(2, 10000, 30000))
+           .setMetrics(new FaceMetrics(metrics))
+           .build()) {
+      otherServer.failNextRequests(1, 503).setRetryAfterSeconds(1);
+      Assert.assertEquals(1, client.detect(IMAGE).size());
+      // The first retry went to the other endpoint right away, and the second waited for the first endpoint
+      Assert.assertEquals(2, server.getDetectRequests());
+      Assert.assertEquals(1, otherServer.getDetectRequests());
+    }
+    Assert.assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+    Assert.assertEquals(2, metrics.getCount("detect.retries"));
+  }
+
+  @Test
+  public void testSlowCallIsHedgedOnAnotherEndpoint() throws Exception {
+    // The first call of a new client goes to the first endpoint, which is always slow, and its hedge to the other
+    server.setLatency(5, TimeUnit.SECONDS);
+    long start = System.nanoTime();
+    try (MockFaceApiServer otherServer = MockFaceApiServer.start();
+         FaceApiClient client = FaceApiClient.builder()
+           .setFaceEndpoint(server.getFaceEndpoint(), "key")
+           .addFaceEndpoint(otherServer.getFaceEndpoint(), "otherKey")
+           .setHedging(90.0d, 100)
+           .setMetrics(new FaceMetrics(metrics))
+           .build()) {
+      // Past calls took 100 ms, so a call is hedged once it took longer than that
+      RequestHedger hedger = client.getFaceHedger();
+      for (int i = 0; i < 20; i++) {
+        hedger.onSuccess(100);
+      }
+      Assert.assertEquals(100, hedger.getDelayMillis());
+      Assert.assertEquals(1, client.detect(IMAGE).size());
+      Assert.assertEquals(1, server.getDetectRequests());
+      Assert.assertEquals(1, otherServer.getDetectRequests());
+    }
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+    Assert.assertEquals(1, metrics.getCount("detect.hedges"));
+    Assert.assertEquals(1, metrics.getCount("detect.hedge.wins"));
+    // The slow request lost the race and was aborted, which does not take its endpoint out of rotation
+    Assert.assertEquals(0, metrics.getCount("detect.ejections"));
+  }
+
+  @Test
+  public void testCallsAreNotHedgedUntilLatenciesAreKnown() throws Exception {
+    try (MockFaceApiServer otherServer = MockFaceApiServer.start();
+         FaceApiClient client = FaceApiClient.builder()
+           .setFaceEndpoint(server.getFaceEndpoint(), "key")
+           .addFaceEndpoint(otherServer.getFaceEndpoint(), "otherKey")
+           .setHedging(90.0d, 100)
+           .setMetrics(new FaceMetrics(metrics))
+           .build()) {
+      for (int i = 0; i < 19; i++) {
+        client.detect(IMAGE);
+      }
+    }
+    Assert.assertEquals(0, metrics.getCount("detect.hedges"));
+  }
+
+  @Test
+  public void testBackoffIsBoundedAndGrows() {
+    RetryPolicy retryPolicy = new RetryPolicy(10, 100, 1000);
+    for (int i = 0; i < 100; i++) {
+      Assert.assertTrue(retryPolicy.getDelayMillis(1, null) <= 100);
+      Assert.assertTrue(retryPolicy.getDelayMillis(3, null) <= 400);
+      Assert.assertTrue(retryPolicy.getDelayMillis(40, null) <= 1000);
+    }
+    Assert.assertEquals(5000L, retryPolicy.getDelayMillis(1, 5000L));
+  }
+
+  @Test
+  public void testLatencyBuckets() {
+    Assert.assertEquals("le_50ms", FaceMetrics.getLatencyBucket(0));
+    Assert.assertEquals("le_250ms", FaceMetrics.getLatencyBucket(250));
+    Assert.assertEquals("le_500ms", FaceMetrics.getLatencyBucket(251));
+    Assert.assertEquals("gt_10000ms", FaceMetrics.getLatencyBucket(60000));
+  }
+
+  @Test
+  public void testRateLimiterIsSharedAndAdapts() {
+    SubscriptionRateLimiter limiter = SubscriptionRateLimiter.forKey("testRateLimiterIsSharedAndAdapts", 100);
+    Assert.assertSame(limiter, SubscriptionRateLimiter.forKey("testRateLimiterIsSharedAndAdapts", 100));
+
+    limiter.onThrottled();
+    Assert.assertEquals(50.0d, limiter.getRate(), 0.001d);
+    for (int i = 0; i < 10; i++) {
+      limiter.onThrottled();
+    }
+    Assert.assertEquals(10.0d, limiter.getRate(), 0.001d);
+    for (int i = 0; i < 20; i++) {
+      limiter.onSuccess();
+    }
+    Assert.assertEquals(100.0d, limiter.getRate(), 0.001d);
+  }
+
+  @Test
+  public void testSharedRateLimiterKeepsLowestConfiguredRate() {
+    SubscriptionRateLimiter limiter = SubscriptionRateLimiter.forKey("testSharedRateLimiterKeepsLowestRate", 100);
+    // Another stage with the same key lowers the rate for both, but cannot raise it again
+    Assert.assertSame(limiter, SubscriptionRateLimiter.forKey("testSharedRateLimiterKeepsLowestRate", 40));
+    Assert.assertEquals(40.0d, limiter.getRate(), 0.001d);
+    SubscriptionRateLimiter.forKey("testSharedRateLimiterKeepsLowestRate", 200);
+    Assert.assertEquals(40.0d, limiter.getRate(), 0.001d);
+
+    // Nor does it undo the adaptation to throttling
+    limiter.onThrottled();
+    SubscriptionRateLimiter.forKey("testSharedRateLimiterKeepsLowestRate", 40);
+    Assert.assertEquals(20.0d, limiter.getRate(), 0.001d);
+    Assert.assertNotSame(limiter, SubscriptionRateLimiter.forKey("otherKey", 40));
+  }
+
+  private FaceApiClient createClient(RetryPolicy retryPolicy, Double requestsPerSecond) {
+    return FaceApiClient.builder()
+      .setFaceEndpoint(server.getFaceEndpoint(), "key")
+      .setEmotionEndpoint(server.getEmotionEndpoint(), "key")
+      .setRetryPolicy(retryPolicy)
+      .setRequestsPerSecond(requestsPerSecond)
+      .setMetrics(new FaceMetrics(metrics))
+      .build();
+  }
+}
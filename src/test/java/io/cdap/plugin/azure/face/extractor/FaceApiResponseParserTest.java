@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import com.google.gson.stream.JsonReader;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+/**
+ * Tests {@link FaceApiResponseParser}.
+ */
+public class FaceApiResponseParserTest {
+
+  @Test
+  public void testReadFaces() throws IOException {
+    String json = "[{\"faceId\": \"c5c24a82-6845-4031-9d5d-978df9175426\","
+      + "\"faceRectangle\": {\"width\": 78, \"height\": 79, \"left\": 394, \"top\": 54},"
+      + "\"faceLandmarks\": {\"pupilLeft\": {\"x\": 412.7, \"y\": 78.4}},"
+      + "\"faceAttributes\": {\"age\": 71.0, \"gender\": \"male\", \"smile\": 0.88,"
+      + "\"facialHair\": {\"moustache\": 0.8, \"beard\": 0.1, \"sideburns\": 0.02},"
+      + "\"glasses\": \"sunglasses\", \"headPose\": {\"roll\": 2.1, \"yaw\": 3, \"pitch\": null},"
+      + "\"makeup\": {\"eyeMakeup\": false, \"lipMakeup\": false},"
+      + "\"emotion\": {\"anger\": 0.575, \"happiness\": 0.0, \"sadness\": null}}}]";
+
+    List<DetectedFace> faces = FaceApiResponseParser.readFaces(new JsonReader(new StringReader(json)));
+
+    Assert.assertEquals(1, faces.size());
+    DetectedFace face = faces.get(0);
+    Assert.assertEquals("c5c24a82-6845-4031-9d5d-978df9175426", face.getFaceId());
+    Assert.assertEquals(394, face.getFaceRectangle().getLeft());
+    Assert.assertEquals(54, face.getFaceRectangle().getTop());
+    Assert.assertEquals(78, face.getFaceRectangle().getWidth());
+    Assert.assertEquals(79, face.getFaceRectangle().getHeight());
+    DetectedFace.Attributes attributes = face.getFaceAttributes();
+    Assert.assertEquals(71.0d, attributes.getAge(), 0.0d);
+    Assert.assertEquals("male", attributes.getGender());
+    Assert.assertEquals(0.88d, attributes.getSmile(), 0.0d);
+    Assert.assertEquals(0.8d, attributes.getFacialHair().getMoustache(), 0.0d);
+    Assert.assertEquals("sunglasses", attributes.getGlasses());
+    Assert.assertEquals(3.0d, attributes.getHeadPose().getYaw(), 0.0d);
+    Assert.assertNull(attributes.getHeadPose().getPitch());
+    Assert.assertEquals(2, attributes.getEmotion().size());
+    Assert.assertEquals(0.575d, attributes.getEmotion().get("anger"), 0.0d);
+  }
+
+  @Test
+  public void testReadFacesWithoutAttributes() throws IOException {
+    String json = "[{\"faceRectangle\": {\"width\": 10, \"height\": 10, \"left\": 1, \"top\": 2}}]";
+
+    List<DetectedFace> faces = FaceApiResponseParser.readFaces(new JsonReader(new StringReader(json)));
+
+    Assert.assertNull(faces.get(0).getFaceId());
+    Assert.assertNull(faces.get(0).getFaceAttributes());
+  }
+
+  @Test
+  public void testReadEmotions() throws IOException {
+    String json = "[{\"faceRectangle\": {\"left\": 68, \"top\": 97, \"width\": 64, \"height\": 97},"
+      + "\"scores\": {\"anger\": 0.00300731952, \"happiness\": 0.9847, \"neutral\": 0.01}}]";
+
+    List<EmotionResult> emotions = FaceApiResponseParser.readEmotions(new JsonReader(new StringReader(json)));
+
+    Assert.assertEquals(1, emotions.size());
+    Assert.assertEquals(68, emotions.get(0).getFaceRectangle().getLeft());
+    Assert.assertEquals(3, emotions.get(0).getScores().size());
+    Assert.assertEquals(0.9847d, emotions.get(0).getScores().get("happiness"), 0.0d);
+  }
+
+  @Test
+  public void testEmotionsWithoutRectangleAreSkipped() throws IOException {
+    String json = "[{\"faceRectangle\": null, \"scores\": {\"happiness\": 0.1}},"
+      + "{\"scores\": {\"happiness\": 0.2}},"
+      + "{\"faceRectangle\": {\"left\": 10, \"top\": 10, \"width\": 0, \"height\": 20},"
+      + "\"scores\": {\"happiness\": 0.3}},"
+      + "{\"faceRectangle\": {\"left\": 68, \"top\": 97, \"width\": 64, \"height\": 97},"
+      + "\"scores\": {\"happiness\": 0.4}}]";
+
+    List<EmotionResult> emotions = FaceApiResponseParser.readEmotions(new JsonReader(new StringReader(json)));
+
+    Assert.assertEquals(1, emotions.size());
+    Assert.assertEquals(0.4d, emotions.get(0).getScores().get("happiness"), 0.0d);
+    // The remaining emotions can be matched to faces
+    EmotionMatcher matcher = new EmotionMatcher(emotions, 0.5d);
+    Assert.assertSame(emotions.get(0), matcher.match(new FaceRectangle(68, 97, 64, 97)));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testUnexpectedResponseFails() throws IOException {
+    FaceApiResponseParser.readFaces(new JsonReader(new StringReader("{\"faces\": []}")));
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Tests {@link FacePreFilter}.
+ */
+public class FacePreFilterTest {
+  private static final Color SKIN = new Color(224, 172, 140);
+  private static final Color SKY = new Color(30, 60, 200);
+
+  @Test
+  public void testImageWithoutSkinIsSkipped() {
+    Assert.assertFalse(new FacePreFilter(0.5d).mayContainFaces(createImage(SKY, 0), 1.0d));
+  }
+
+  @Test
+  public void testImageWithFaceSizedSkinIsLetThrough() throws IOException {
+    BufferedImage image = createImage(SKY, 120);
+    Assert.assertTrue(new FacePreFilter(0.5d).mayContainFaces(image, 1.0d));
+    // Large images are subsampled while they are decoded
+    ImageData imageData = ImageData.of(Images.encodeJpeg(image, 0.9f));
+    Assert.assertTrue(new FacePreFilter(0.5d).mayContainFaces(imageData));
+  }
+
+  @Test
+  public void testSensitivityLetsSmallSkinRegionsThrough() {
+    BufferedImage image = createImage(SKY, 12);
+    Assert.assertFalse(new FacePreFilter(0.5d).mayContainFaces(image, 1.0d));
+    Assert.assertTrue(new FacePreFilter(1.0d).mayContainFaces(image, 1.0d));
+  }
+
+  @Test
+  public void testLargeImageWithoutFaceSizedSkinIsSkipped() throws IOException {
+    BufferedImage image = new BufferedImage(4000, 3000, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = image.createGraphics();
+    try {
+      graphics.setColor(SKY);
+      graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+      // Far smaller than the smallest face the services detect in an image this large, but more than 36x36 pixels
+      graphics.setColor(SKIN);
+      graphics.fillOval(1000, 1000, 40, 40);
+      graphics.fillOval(3000, 2000, 40, 40);
+    } finally {
+      graphics.dispose();
+    }
+    Assert.assertFalse(new FacePreFilter(0.0d).mayContainFaces(ImageData.of(Images.encodeJpeg(image, 0.9f))));
+    Assert.assertFalse(new FacePreFilter(0.0d).mayContainFaces(image, 1.0d));
+
+    graphics = image.createGraphics();
+    try {
+      graphics.setColor(SKIN);
+      graphics.fillOval(2000, 1500, 200, 260);
+    } finally {
+      graphics.dispose();
+    }
+    Assert.assertTrue(new FacePreFilter(0.0d).mayContainFaces(ImageData.of(Images.encodeJpeg(image, 0.9f))));
+  }
+
+  @Test
+  public void testGrayscaleImageIsLetThrough() {
+    Assert.assertTrue(new FacePreFilter(0.0d).mayContainFaces(createImage(Color.GRAY, 0), 1.0d));
+  }
+
+  /**
+   * Creates a 1000x800 image of the given color with a skin-colored oval of the given width in the middle.
+   */
+  static BufferedImage createImage(Color background, int skinWidth) {
+    BufferedImage image = new BufferedImage(1000, 800, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = image.createGraphics();
+    try {
+      graphics.setColor(background);
+      graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+      graphics.setColor(SKIN);
+      graphics.fillOval(500 - skinWidth / 2, 400 - skinWidth * 2 / 3, skinWidth, skinWidth * 4 / 3);
+    } finally {
+      graphics.dispose();
+    }
+    return image;
+  }
+}
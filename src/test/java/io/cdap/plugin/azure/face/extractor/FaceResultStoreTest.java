@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.EmotionSource;
+import io.cdap.plugin.azure.face.extractor.AzureFaceExtractorConfig.FaceAttribute;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Tests {@link FaceResultStore}.
+ */
+public class FaceResultStoreTest {
+  private static final Set<FaceAttribute> ATTRIBUTES = EnumSet.of(FaceAttribute.AGE, FaceAttribute.GENDER);
+  private static final String IMAGE = "a1b2c3";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testStoredResultIsReadBack() throws Exception {
+    String path = temporaryFolder.newFolder().getAbsolutePath();
+    FaceResultStore store = new FaceResultStore(path, ATTRIBUTES, EmotionSource.EMOTION, new Configuration(), null);
+    Assert.assertNull(store.get(IMAGE));
+
+    store.put(IMAGE, analysis());
+    // A later run opens its own store over the same directory
+    FaceAnalysis stored = new FaceResultStore(path, EnumSet.of(FaceAttribute.GENDER, FaceAttribute.AGE),
+                                              EmotionSource.EMOTION, new Configuration(), null).get(IMAGE);
+
+    Assert.assertNotNull(stored);
+    Assert.assertEquals(12, stored.getFaces().get(0).getFaceRectangle().getLeft());
+  }
+
+  @Test
+  public void testResultsAreSeparatedByAttributes() throws Exception {
+    String path = temporaryFolder.newFolder().getAbsolutePath();
+    new FaceResultStore(path, ATTRIBUTES, EmotionSource.EMOTION, new Configuration(), null).put(IMAGE, analysis());
+
+    Assert.assertNull(new FaceResultStore(path, EnumSet.of(FaceAttribute.AGE), EmotionSource.EMOTION,
+                                          new Configuration(), null).get(IMAGE));
+    Assert.assertNull(new FaceResultStore(path, ATTRIBUTES, EmotionSource.DETECT,
+                                          new Configuration(), null).get(IMAGE));
+  }
+
+  @Test
+  public void testCorruptResultIsAMiss() throws Exception {
+    File directory = temporaryFolder.newFolder();
+    File namespace = new File(directory, FaceResultStore.getNamespace(ATTRIBUTES, EmotionSource.EMOTION));
+    Assert.assertTrue(namespace.mkdirs());
+    Files.write(new File(namespace, IMAGE + ".json").toPath(), "[{\"faces\"".getBytes(StandardCharsets.UTF_8));
+
+    FaceResultStore store = new FaceResultStore(directory.getAbsolutePath(), ATTRIBUTES, EmotionSource.EMOTION,
+                                                new Configuration(), null);
+
+    Assert.assertNull(store.get(IMAGE));
+  }
+
+  private static FaceAnalysis analysis() {
+    DetectedFace face = new DetectedFace("id", new FaceRectangle(12, 34, 56, 78), null);
+    return new FaceAnalysis(Collections.singletonList(face), null);
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests {@link Images}.
+ */
+public class ImagesTest {
+
+  @Test
+  public void testSmallImageIsUploadedUnchanged() throws Exception {
+    ImageData imageData = readImage("IMG_4376.JPG");
+    Images.PreparedImage prepared = Images.preflight(imageData, 2048, 0.9f);
+
+    Assert.assertSame(imageData, prepared.getData());
+    Assert.assertEquals(1.0d, prepared.getScale(), 0.0d);
+  }
+
+  @Test
+  public void testLargeImageIsDownscaled() throws Exception {
+    ImageData imageData = readImage("C819Ix6VoAAIcV8.jpg");
+    Images.PreparedImage prepared = Images.preflight(imageData, 512, 0.9f);
+
+    BufferedImage resized = Images.decode(prepared.getData());
+    Assert.assertEquals(512, resized.getWidth());
+    Assert.assertEquals(384, resized.getHeight());
+    Assert.assertEquals(4.0d, prepared.getScale(), 0.0d);
+    Assert.assertTrue(prepared.getData().getLength() < imageData.getLength());
+  }
+
+  @Test
+  public void testUnreadableImageIsUploadedUnchanged() throws Exception {
+    ImageData imageData = ImageData.of(new byte[] {1, 2, 3, 4});
+    Images.PreparedImage prepared = Images.preflight(imageData, 512, 0.9f);
+
+    Assert.assertSame(imageData, prepared.getData());
+  }
+
+  @Test
+  public void testCropIsClippedToImage() throws Exception {
+    BufferedImage image = Images.decode(readImage("IMG_4376.JPG"));
+
+    Assert.assertNull(Images.crop(image, 2000, 2000, 10, 10));
+    BufferedImage thumbnail = Images.decode(ImageData.of(Images.crop(image, -10, -10, 110, 60)));
+    Assert.assertEquals(100, thumbnail.getWidth());
+    Assert.assertEquals(50, thumbnail.getHeight());
+  }
+
+  private static ImageData readImage(String name) throws IOException {
+    try (InputStream input = ImagesTest.class.getClassLoader().getResourceAsStream(name)) {
+      return ImageData.of(ByteStreams.toByteArray(input));
+    }
+  }
+}
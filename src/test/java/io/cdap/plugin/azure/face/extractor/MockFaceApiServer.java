@@ -0,0 +1,312 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import com.google.common.io.ByteStreams;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An embedded HTTP server that mimics the Azure Face API detect call and the Emotion API recognize call, with
+ * configurable latency and error injection, so the transform can be exercised without the network.
+ *
+ * Every image is reported to contain the same number of faces, laid out side by side, and the emotion response
+ * contains a matching rectangle for each face.
+ */
+public final class MockFaceApiServer implements Closeable {
+  static final String FACE_PATH = "/face/v1.0";
+  static final String EMOTION_PATH = "/emotion/v1.0";
+  static final String[] EMOTIONS = {
+    "anger", "contempt", "disgust", "fear", "happiness", "neutral", "sadness", "surprise"
+  };
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final AtomicInteger detectRequests = new AtomicInteger();
+  private final AtomicInteger recognizeRequests = new AtomicInteger();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicInteger failuresRemaining = new AtomicInteger();
+  private final AtomicInteger activeRequests = new AtomicInteger();
+  private final AtomicInteger maxActiveRequests = new AtomicInteger();
+  private volatile int facesPerImage = 1;
+  private volatile long latencyMillis;
+  private volatile int failureStatus = 500;
+  private volatile double errorRate;
+  private volatile Integer retryAfterSeconds;
+  private volatile int emotionOffset;
+  private volatile boolean distinctEmotions;
+  private volatile String lastDetectQuery;
+  private volatile byte[] lastDetectBody;
+
+  private MockFaceApiServer(HttpServer server, ExecutorService executor) {
+    this.server = server;
+    this.executor = executor;
+  }
+
+  /**
+   * Starts a server on a free port of the loopback interface.
+   */
+  public static MockFaceApiServer start() throws IOException {
+    HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    ExecutorService executor = Executors.newCachedThreadPool();
+    MockFaceApiServer mockServer = new MockFaceApiServer(httpServer, executor);
+    httpServer.createContext(FACE_PATH + "/detect", exchange -> mockServer.handle(exchange, true));
+    httpServer.createContext(EMOTION_PATH + "/recognize", exchange -> mockServer.handle(exchange, false));
+    httpServer.setExecutor(executor);
+    httpServer.start();
+    return mockServer;
+  }
+
+  public String getFaceEndpoint() {
+    return getBaseUrl() + FACE_PATH;
+  }
+
+  public String getEmotionEndpoint() {
+    return getBaseUrl() + EMOTION_PATH;
+  }
+
+  public MockFaceApiServer setFacesPerImage(int facesPerImage) {
+    this.facesPerImage = facesPerImage;
+    return this;
+  }
+
+  public MockFaceApiServer setLatency(long latency, TimeUnit unit) {
+    this.latencyMillis = unit.toMillis(latency);
+    return this;
+  }
+
+  /**
+   * Makes the given fraction of requests, chosen at random, fail with the failure status.
+   */
+  public MockFaceApiServer setErrorRate(double errorRate) {
+    this.errorRate = errorRate;
+    return this;
+  }
+
+  /**
+   * Makes the next requests fail with the given HTTP status.
+   */
+  public MockFaceApiServer failNextRequests(int count, int statusCode) {
+    this.failureStatus = statusCode;
+    this.failuresRemaining.set(count);
+    return this;
+  }
+
+  /**
+   * Shifts the rectangles of the emotion response by the given number of pixels, to mimic the services locating the
+   * same face slightly differently.
+   */
+  public MockFaceApiServer setEmotionOffset(int emotionOffset) {
+    this.emotionOffset = emotionOffset;
+    return this;
+  }
+
+  /**
+   * Gives each face its own happiness score of a tenth per position, so the first face is 0.1 happy, the second 0.2
+   * and so on. By default every emotion of every face scores the same.
+   */
+  public MockFaceApiServer setDistinctEmotions(boolean distinctEmotions) {
+    this.distinctEmotions = distinctEmotions;
+    return this;
+  }
+
+  /**
+   * Makes injected failures carry a Retry-After header with the given number of seconds, or none if null.
+   */
+  public MockFaceApiServer setRetryAfterSeconds(Integer retryAfterSeconds) {
+    this.retryAfterSeconds = retryAfterSeconds;
+    return this;
+  }
+
+  public int getDetectRequests() {
+    return detectRequests.get();
+  }
+
+  /**
+   * Returns the query string of the last detect call, which holds the requested face attributes.
+   */
+  public String getLastDetectQuery() {
+    return lastDetectQuery;
+  }
+
+  /**
+   * Returns the largest number of requests of either kind that the server was handling at the same time.
+   */
+  public int getMaxConcurrentRequests() {
+    return maxActiveRequests.get();
+  }
+
+  /**
+   * Returns the image uploaded with the last detect call.
+   */
+  public byte[] getLastDetectBody() {
+    return lastDetectBody;
+  }
+
+  public int getRecognizeRequests() {
+    return recognizeRequests.get();
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private String getBaseUrl() {
+    InetSocketAddress address = server.getAddress();
+    return String.format("http://%s:%d", address.getAddress().getHostAddress(), address.getPort());
+  }
+
+  private void handle(HttpExchange exchange, boolean detect) throws IOException {
+    int active = activeRequests.incrementAndGet();
+    maxActiveRequests.accumulateAndGet(active, Math::max);
+    try {
+      (detect ? detectRequests : recognizeRequests).incrementAndGet();
+      if (detect) {
+        lastDetectQuery = exchange.getRequestURI().getRawQuery();
+      }
+      try (InputStream body = exchange.getRequestBody()) {
+        byte[] bytes = ByteStreams.toByteArray(body);
+        bytesReceived.addAndGet(bytes.length);
+        if (detect) {
+          lastDetectBody = bytes;
+        }
+      }
+      if (latencyMillis > 0) {
+        TimeUnit.MILLISECONDS.sleep(latencyMillis);
+      }
+      if (exchange.getRequestHeaders().getFirst("Ocp-Apim-Subscription-Key") == null) {
+        respond(exchange, 401, error("Unspecified", "Access denied due to missing subscription key."));
+      } else if (failuresRemaining.getAndUpdate(remaining -> Math.max(0, remaining - 1)) > 0
+        || (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate)) {
+        Integer retryAfter = retryAfterSeconds;
+        if (retryAfter != null) {
+          exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfter));
+        }
+        respond(exchange, failureStatus, error("InjectedFailure", "Failure injected by the mock server."));
+      } else {
+        String query = exchange.getRequestURI().getQuery();
+        respond(exchange, 200, detect ? faces(query != null && query.contains("emotion")) : emotions());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      activeRequests.decrementAndGet();
+      exchange.close();
+    }
+  }
+
+  private JsonArray faces(boolean withEmotion) {
+    JsonArray faces = new JsonArray();
+    for (int i = 0; i < facesPerImage; i++) {
+      JsonObject facialHair = new JsonObject();
+      facialHair.addProperty("moustache", 0.1);
+      facialHair.addProperty("beard", 0.2);
+      facialHair.addProperty("sideburns", 0.3);
+      JsonObject headPose = new JsonObject();
+      headPose.addProperty("roll", 1.5);
+      headPose.addProperty("yaw", -2.5);
+      headPose.addProperty("pitch", 0.0);
+      JsonObject attributes = new JsonObject();
+      attributes.addProperty("age", 30 + i);
+      attributes.addProperty("gender", i % 2 == 0 ? "female" : "male");
+      attributes.addProperty("smile", 0.75);
+      attributes.add("facialHair", facialHair);
+      attributes.addProperty("glasses", "NoGlasses");
+      attributes.add("headPose", headPose);
+      if (withEmotion) {
+        attributes.add("emotion", scores(i));
+      }
+      JsonObject face = new JsonObject();
+      face.addProperty("faceId", UUID.randomUUID().toString());
+      face.add("faceRectangle", rectangle(i, 0));
+      face.add("faceAttributes", attributes);
+      faces.add(face);
+    }
+    return faces;
+  }
+
+  private JsonArray emotions() {
+    JsonArray emotions = new JsonArray();
+    for (int i = 0; i < facesPerImage; i++) {
+      JsonObject emotion = new JsonObject();
+      emotion.add("faceRectangle", rectangle(i, emotionOffset));
+      emotion.add("scores", scores(i));
+      emotions.add(emotion);
+    }
+    return emotions;
+  }
+
+  private JsonObject scores(int index) {
+    JsonObject scores = new JsonObject();
+    for (String emotion : EMOTIONS) {
+      scores.addProperty(emotion, 1.0d / EMOTIONS.length);
+    }
+    if (distinctEmotions) {
+      scores.addProperty("happiness", (index + 1) / 10.0d);
+    }
+    return scores;
+  }
+
+  private static JsonObject rectangle(int index, int offset) {
+    JsonObject rectangle = new JsonObject();
+    rectangle.addProperty("left", 10 + 100 * index + offset);
+    rectangle.addProperty("top", 20 + offset);
+    rectangle.addProperty("width", 80);
+    rectangle.addProperty("height", 80);
+    return rectangle;
+  }
+
+  private static JsonObject error(String code, String message) {
+    JsonObject error = new JsonObject();
+    error.addProperty("code", code);
+    error.addProperty("message", message);
+    JsonObject response = new JsonObject();
+    response.add("error", error);
+    return response;
+  }
+
+  private static void respond(HttpExchange exchange, int statusCode, Object json) throws IOException {
+    byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(statusCode, body.length);
+    try (OutputStream output = exchange.getResponseBody()) {
+      output.write(body);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link RequestHedger}.
+ */
+public class RequestHedgerTest {
+
+  @Test
+  public void testNoDelayUntilEnoughLatenciesAreKnown() {
+    RequestHedger hedger = new RequestHedger(95, 10);
+    Assert.assertEquals(-1, hedger.getDelayMillis());
+    for (int i = 1; i < 20; i++) {
+      hedger.onSuccess(i);
+    }
+    Assert.assertEquals(-1, hedger.getDelayMillis());
+    hedger.onSuccess(20);
+    Assert.assertEquals(19, hedger.getDelayMillis());
+  }
+
+  @Test
+  public void testDelayIsPercentileOfRecentLatencies() {
+    RequestHedger hedger = new RequestHedger(95, 10);
+    for (int i = 1; i <= 100; i++) {
+      hedger.onSuccess(i);
+    }
+    Assert.assertEquals(95, hedger.getDelayMillis());
+
+    // Once the service speeds up, the old latencies leave the window
+    for (int i = 0; i < 256; i++) {
+      hedger.onSuccess(10);
+    }
+    Assert.assertEquals(10, hedger.getDelayMillis());
+  }
+
+  @Test
+  public void testHedgesStayWithinBudget() {
+    RequestHedger hedger = new RequestHedger(95, 10);
+    Assert.assertFalse(hedger.tryHedge());
+    for (int i = 0; i < 9; i++) {
+      hedger.onCall();
+    }
+    Assert.assertFalse(hedger.tryHedge());
+    hedger.onCall();
+    Assert.assertTrue(hedger.tryHedge());
+    Assert.assertFalse(hedger.tryHedge());
+
+    // Every ten more calls allow one more hedge
+    int hedges = 1;
+    for (int i = 0; i < 90; i++) {
+      hedger.onCall();
+      hedges += hedger.tryHedge() ? 1 : 0;
+    }
+    Assert.assertEquals(10, hedges);
+    Assert.assertFalse(hedger.tryHedge());
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright © 2019 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.cdap.plugin.azure.face.extractor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests {@link TiledCanvas}.
+ */
+public class TiledCanvasTest {
+
+  @Test
+  public void testMaxTileEdge() {
+    Assert.assertEquals(1016, TiledCanvas.getMaxTileEdge(4));
+    Assert.assertEquals(500, TiledCanvas.getMaxTileEdge(16));
+  }
+
+  @Test
+  public void testImagesAreTiledInAGrid() throws Exception {
+    TiledCanvas canvas = TiledCanvas.create(Arrays.asList(image(100, 80), image(60, 60), image(100, 100)), 0.9f);
+
+    BufferedImage decoded = Images.decode(canvas.getImageData());
+    // Two columns and two rows of 100x100 cells, with a 16 pixel gap between them
+    Assert.assertEquals(216, decoded.getWidth());
+    Assert.assertEquals(216, decoded.getHeight());
+  }
+
+  @Test
+  public void testFacesAreMappedBackToTheirImage() throws Exception {
+    TiledCanvas canvas = TiledCanvas.create(Arrays.asList(image(100, 80), image(60, 60), image(100, 100)), 0.9f);
+    List<DetectedFace> faces = Arrays.asList(
+      face(30, 30, 20, 20),
+      face(126, 10, 30, 30),
+      face(10, 126, 20, 20),
+      // The center lies in the gap between the first two images
+      face(95, 10, 10, 10),
+      // The center lies right of the second image, which is narrower than its cell
+      face(186, 10, 20, 20),
+      // There is no fourth image
+      face(150, 150, 10, 10));
+    List<EmotionResult> emotions = Arrays.asList(new EmotionResult(new FaceRectangle(126, 10, 30, 30), null));
+
+    List<FaceAnalysis> analyses = canvas.split(new FaceAnalysis(faces, emotions));
+
+    Assert.assertEquals(3, analyses.size());
+    Assert.assertEquals(1, analyses.get(0).getFaces().size());
+    Assert.assertEquals(30, analyses.get(0).getFaces().get(0).getFaceRectangle().getLeft());
+    Assert.assertEquals(1, analyses.get(1).getFaces().size());
+    Assert.assertEquals(10, analyses.get(1).getFaces().get(0).getFaceRectangle().getLeft());
+    Assert.assertEquals(10, analyses.get(1).getFaces().get(0).getFaceRectangle().getTop());
+    Assert.assertEquals(10, analyses.get(1).getEmotions().get(0).getFaceRectangle().getLeft());
+    Assert.assertTrue(analyses.get(0).getEmotions().isEmpty());
+    Assert.assertEquals(1, analyses.get(2).getFaces().size());
+    Assert.assertEquals(10, analyses.get(2).getFaces().get(0).getFaceRectangle().getTop());
+  }
+
+  private static BufferedImage image(int width, int height) {
+    return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+  }
+
+  private static DetectedFace face(int left, int top, int width, int height) {
+    return new DetectedFace(null, new FaceRectangle(left, top, width, height), null);
+  }
+}